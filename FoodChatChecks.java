@@ -0,0 +1,1147 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runnable checks and benchmarks for IntegratedChatbotApp. There is no build
+ * tool, so compile the two files together and run this class:
+ *
+ *   javac -encoding UTF-8 -d out IntegratedChatbotApp.java FoodChatChecks.java
+ *   java -cp out FoodChatChecks            every check
+ *   java -cp out FoodChatChecks journal    checks whose name contains "journal"
+ *   java -cp out FoodChatChecks bench      the benchmarks (slow; give them -Xmx3g)
+ *
+ * A failed check throws; the run exits non-zero if any did. Everything is
+ * written under a fresh temp directory (foodchat.dataDir).
+ */
+public class FoodChatChecks {
+    interface Check { void run() throws Exception; }
+
+    private static final Map<String, Check> CHECKS = new LinkedHashMap<>();
+    static {
+        CHECKS.put("priceRangeParsing", FoodChatChecks::priceRangeParsing);
+        CHECKS.put("priceOnlySearch", FoodChatChecks::priceOnlySearch);
+        CHECKS.put("priceBoundedTagSearch", FoodChatChecks::priceBoundedTagSearch);
+        CHECKS.put("intentRoutesMatchOldCascade", FoodChatChecks::intentRoutesMatchOldCascade);
+        CHECKS.put("fuzzySearchFindsTypos", FoodChatChecks::fuzzySearchFindsTypos);
+        CHECKS.put("suggestRanksLabels", FoodChatChecks::suggestRanksLabels);
+        CHECKS.put("suggestCompletesWordAtCaret", FoodChatChecks::suggestCompletesWordAtCaret);
+        CHECKS.put("searchWhileMenusChange", FoodChatChecks::searchWhileMenusChange);
+        CHECKS.put("codecRoundTrip", FoodChatChecks::codecRoundTrip);
+        CHECKS.put("journalRoundTrip", FoodChatChecks::journalRoundTrip);
+        CHECKS.put("journalCutsTornRecord", FoodChatChecks::journalCutsTornRecord);
+        CHECKS.put("orderIdLeases", FoodChatChecks::orderIdLeases);
+        CHECKS.put("orderStatusRaces", FoodChatChecks::orderStatusRaces);
+        CHECKS.put("orderLogCompactsFinalOrders", FoodChatChecks::orderLogCompactsFinalOrders);
+        CHECKS.put("historyPagesMatchBruteForce", FoodChatChecks::historyPagesMatchBruteForce);
+        CHECKS.put("listenerRegistryUnderContention", FoodChatChecks::listenerRegistryUnderContention);
+        CHECKS.put("dispatcherSurvivesJournalFailure", FoodChatChecks::dispatcherSurvivesJournalFailure);
+        CHECKS.put("botRepliesSupersedeAndExpire", FoodChatChecks::botRepliesSupersedeAndExpire);
+        CHECKS.put("historySpillsLongMessages", FoodChatChecks::historySpillsLongMessages);
+        CHECKS.put("historyReadsAfterSpillFailure", FoodChatChecks::historyReadsAfterSpillFailure);
+        CHECKS.put("chatIndexIsBounded", FoodChatChecks::chatIndexIsBounded);
+        CHECKS.put("tenThousandSessions", FoodChatChecks::tenThousandSessions);
+        CHECKS.put("gatewayCheckoutAndSellerTopics", FoodChatChecks::gatewayCheckoutAndSellerTopics);
+        CHECKS.put("benchSearchScaling", FoodChatChecks::benchSearchScaling);
+        CHECKS.put("benchFuzzyLookup", FoodChatChecks::benchFuzzyLookup);
+        CHECKS.put("benchQueryParsing", FoodChatChecks::benchQueryParsing);
+        CHECKS.put("benchIntentRouting", FoodChatChecks::benchIntentRouting);
+        CHECKS.put("benchOrderIds", FoodChatChecks::benchOrderIds);
+        CHECKS.put("benchOrderLogRecovery", FoodChatChecks::benchOrderLogRecovery);
+    }
+
+    public static void main(String[] args) throws Exception {
+        java.nio.file.Path dataDir = java.nio.file.Files.createTempDirectory("foodchat-checks");
+        System.setProperty("foodchat.dataDir", dataDir.toString());
+        String filter = args.length > 0 ? args[0] : "";
+        int failed = 0, ran = 0;
+        for (Map.Entry<String, Check> e : CHECKS.entrySet()) {
+            String name = e.getKey();
+            boolean bench = name.startsWith("bench");
+            if (filter.isEmpty() ? bench : !name.toLowerCase().contains(filter.toLowerCase())) continue;
+            long started = System.nanoTime();
+            try {
+                e.getValue().run();
+                System.out.printf("ok    %s (%d ms)%n", name, (System.nanoTime() - started) / 1_000_000);
+            } catch (Throwable t) {
+                failed++;
+                System.out.printf("FAIL  %s: %s%n", name, t);
+                t.printStackTrace(System.out);
+            }
+            ran++;
+        }
+        System.out.printf("%d run, %d failed%n", ran, failed);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+    }
+
+    static java.nio.file.Path tempDir(String name) throws java.io.IOException {
+        return java.nio.file.Files.createTempDirectory(
+            java.nio.file.Paths.get(System.getProperty("foodchat.dataDir")), name);
+    }
+
+    // ---- search ----
+
+    static void expectPrice(String message, Integer min, Integer max) {
+        PriceRange p = PriceRange.parse(message.toLowerCase());
+        check(Objects.equals(p.min, min) && Objects.equals(p.max, max),
+            "\"" + message + "\" -> " + p.min + ".." + p.max + ", expected " + min + ".." + max);
+    }
+
+    static void priceRangeParsing() {
+        expectPrice("mie goreng 2-3 porsi", null, null);
+        expectPrice("nasi 1 - 2 piring", null, null);
+        expectPrice("rp 15-25", 15_000, 25_000);
+        expectPrice("15k-25k", 15_000, 25_000);
+        expectPrice("ayam 15-25rb", 15_000, 25_000);
+        expectPrice("between 15k and 25k", 15_000, 25_000);
+        expectPrice("antara 10 dan 20 ribu", 10_000, 20_000);
+        expectPrice("korean under 15000", null, 15_000);  // the k in "korean" is not a thousands suffix
+        expectPrice("kfc above 12000 under 30k", 12_000, 30_000);
+        expectPrice("budget 20", null, 20_000);
+        expectPrice("under 99999999999999", null, Integer.MAX_VALUE);
+    }
+
+    /** Tag queries with a price range return the in-range matches only, and as many as there are up to the limit. */
+    static void priceBoundedTagSearch() {
+        MultiStoreSystem store = new MultiStoreSystem();
+        int[][] ranges = { { 0, 15_000 }, { 15_000, 25_000 }, { 20_000, 500_000 }, { 0, Integer.MAX_VALUE } };
+        for (String tag : List.of("spicy", "chicken", "rice", "sweet")) {
+            int[] ids = TagDictionary.lookup(List.of(tag));
+            for (int[] r : ranges) {
+                int expected = 0;
+                for (Seller s : store.getSellers()) {
+                    for (MenuItem m : s.getMenu()) if (m.hasAnyTag(ids) && m.getPrice() >= r[0] && m.getPrice() <= r[1]) expected++;
+                }
+                List<SellerItem> hits = store.search(tag, r[0], r[1], null, null);
+                for (SellerItem si : hits) check(si.item.getPrice() >= r[0] && si.item.getPrice() <= r[1], tag + ": out of range " + si.item.getName());
+                check(hits.size() == Math.min(expected, store.getResultLimit()), tag + " " + Arrays.toString(r) + ": " + hits.size() + " of " + expected);
+            }
+        }
+    }
+
+    /** A query that is only a price returns everything in the range, through the engine too. */
+    static void priceOnlySearch() throws Exception {
+        MultiStoreSystem store = new MultiStoreSystem();
+        List<SellerItem> hits = store.search("between 15k and 25k", 15_000, 25_000, null, null);
+        check(!hits.isEmpty(), "no results for a price-only query");
+        for (SellerItem si : hits) check(si.item.getPrice() >= 15_000 && si.item.getPrice() <= 25_000, "out of range: " + si.item.getName());
+        check(store.search("xyz under 20k", null, 20_000, null, null).isEmpty(), "an unknown word still matches nothing");
+
+        FoodChatEngine engine = new FoodChatEngine();
+        BlockingQueue<ChatMessage> replies = new LinkedBlockingQueue<>();
+        engine.chat().subscribe(ChatTopic.BUYER, replies::add);
+        engine.sendBuyerMessage("between 15k and 25k");
+        ChatMessage m;
+        do { m = replies.poll(5, TimeUnit.SECONDS); } while (m != null && m.senderType.equals("BUYER"));
+        engine.shutdown();
+        check(m != null && m.type == MessageType.STORE_RECOMMENDATION && !m.sellerItems.isEmpty(), "bot answer: " + (m == null ? null : m.message));
+    }
+
+    /** Searches racing menu and seller edits never throw, and once the edits stop no stale cached result survives. */
+    static void searchWhileMenusChange() throws Exception {
+        MultiStoreSystem store = new MultiStoreSystem();
+        Seller seller = store.getSellers().get(0);
+        MenuItem special = new MenuItem(seller.getId() + "-99", "Zupa Special", 9000, 4.0, 10, "food", "zupa", "soup");
+        AtomicBoolean editing = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        List<Future<?>> searches = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            searches.add(pool.submit(() -> {
+                while (editing.get()) {
+                    store.search("zupa soup", null, 20_000, true, null);
+                    store.search("", null, null, null, true);
+                }
+            }));
+        }
+        for (int i = 0; i < 300; i++) {
+            seller.addMenuItem(special);
+            store.search("zupa", null, null, null, null);
+            seller.removeMenuItem(special.getId());
+            seller.setBusy(i % 2 == 0);
+            if (i % 100 == 0) store.addSeller(new Seller("X" + i, "Extra " + i, FoodCategory.DESSERT, 4.0, 1.0, 0, 0));
+        }
+        editing.set(false);
+        for (Future<?> f : searches) f.get();
+        pool.shutdown();
+
+        for (SellerItem si : store.search("zupa", null, null, null, null)) check(si.item != special, "removed item still found");
+        seller.addMenuItem(special);
+        boolean found = false;
+        for (SellerItem si : store.search("zupa", null, null, null, null)) found |= si.item == special;
+        check(found, "added item not found");
+    }
+
+    static void expectDish(MultiStoreSystem store, String query, String dish) {
+        boolean found = false;
+        for (SellerItem si : store.search(query, null, null, null, null)) found |= si.item.getName().equals(dish);
+        check(found, "\"" + query + "\" should find " + dish);
+    }
+
+    /** Misspelled dishes, including swapped adjacent letters (one edit, four trigrams), still find the dish. */
+    static void fuzzySearchFindsTypos() {
+        MultiStoreSystem store = new MultiStoreSystem();
+        expectDish(store, "rendag", "Nasi Rendang");
+        expectDish(store, "tteokboki", "Tteokbokki");
+        expectDish(store, "bibimbab", "Bibimbap");
+        expectDish(store, "rendnag", "Nasi Rendang");
+        expectDish(store, "goerng", "Nasi Goreng");
+        expectDish(store, "bugrer", "Beef Burger");
+        expectDish(store, "burgre", "Beef Burger");
+        check(FuzzyIndex.editDistance("bugrer", "burger", 2) == 1, "a transposition is one edit");
+        check(store.search("qwerty", null, null, null, null).isEmpty(), "nothing close to a real word");
+    }
+
+    /**
+     * Suggestions match a brute-force ranking of every category, seller, dish
+     * and tag label that has a word starting with the prefix: categories first,
+     * sellers and dishes by rating, tags by how many items carry them.
+     */
+    static void suggestRanksLabels() {
+        MultiStoreSystem store = new MultiStoreSystem();
+        Map<String, Integer> weights = new HashMap<>();
+        Map<String, String> kinds = new HashMap<>();
+        for (FoodCategory cat : FoodCategory.values()) weights.merge(cat.displayName, 1000, Math::max);
+        Map<String, Integer> tagCounts = new HashMap<>();
+        for (Seller s : store.getSellers()) {
+            weights.merge(s.getName(), (int) (s.getRating() * 100), Math::max);
+            for (MenuItem m : s.getMenu()) {
+                weights.merge(m.getName(), (int) (m.getRating() * 100), Math::max);
+                for (String tag : m.getTags()) tagCounts.merge(tag, 1, Integer::sum);
+            }
+        }
+        tagCounts.forEach((tag, n) -> weights.merge(tag, n, Math::max));
+        for (FoodCategory cat : FoodCategory.values()) kinds.put(cat.displayName, "category");
+        for (Seller s : store.getSellers()) {
+            kinds.putIfAbsent(s.getName(), "seller");
+            for (MenuItem m : s.getMenu()) kinds.putIfAbsent(m.getName(), "dish");
+        }
+        tagCounts.keySet().forEach(tag -> kinds.putIfAbsent(tag, "tag"));
+
+        Set<String> kindsSeen = new TreeSet<>();
+        boolean midLabel = false;
+        String[] prefixes = { "kor", "Korean F", "nas", "nasi go", "gor", "street", "food", "spi", "sw", "ch", "wa",
+            "warung es", "es", "ba", "bur", "chick", "dess", "dr", "fried", "s", "zzz" };
+        for (String prefix : prefixes) {
+            String key = new String(KeywordAutomaton.normalizeWords(prefix));
+            List<String> want = new ArrayList<>();
+            for (String label : weights.keySet()) {
+                String words = new String(KeywordAutomaton.normalizeWords(label));
+                if (words.startsWith(key) || words.contains(" " + key)) want.add(label);
+            }
+            want.sort((a, b) -> !weights.get(a).equals(weights.get(b)) ? weights.get(b) - weights.get(a) : a.compareTo(b));
+            want = want.subList(0, Math.min(6, want.size()));
+            List<String> got = store.suggest(prefix, 6);
+            check(got.equals(want), "suggest " + prefix + ": " + got + " != " + want);
+            for (String label : got) {
+                kindsSeen.add(kinds.get(label));
+                midLabel |= !new String(KeywordAutomaton.normalizeWords(label)).startsWith(key);
+            }
+        }
+        check(kindsSeen.equals(new TreeSet<>(List.of("category", "dish", "seller", "tag"))), "label kinds covered: " + kindsSeen);
+        check(midLabel, "some suggestion matched a later word of its label");
+        check(store.suggest("kor", 6).get(0).equals("Korean Food"), "a category outranks dishes and sellers");
+        check(store.suggest("street", 6).contains("Korean Street Food"), "a seller from a mid-name word");
+        check(store.suggest("gor", 6).contains("Nasi Goreng"), "a dish from a mid-name word");
+    }
+
+    /** Only the words at the caret are completed, and only they are replaced. */
+    static void suggestCompletesWordAtCaret() {
+        MultiStoreSystem store = new MultiStoreSystem();
+        String line = "cheap nasi gor please";
+        int caret = line.indexOf(" please");
+        AutocompleteIndex.Completion c = store.suggestAt(line, caret, 6);
+        check(c.labels.contains("Nasi Goreng"), "phrase before the caret: " + c.labels);
+        check(line.substring(c.from, c.to).equals("nasi gor"), "replaced span: " + line.substring(c.from, c.to));
+
+        line = "show me kor";
+        c = store.suggestAt(line, line.length(), 6);
+        check(c.labels.equals(store.suggest("kor", 6)), "last word alone when no longer phrase matches: " + c.labels);
+        check(c.from == line.indexOf("kor") && c.to == line.length(), "span of the last word");
+
+        line = "bur and drinks";
+        c = store.suggestAt(line, 2, 6);  // caret inside "bur"
+        check(c.labels.equals(store.suggest("bu", 6)), "prefix up to the caret: " + c.labels);
+        check(c.from == 0 && c.to == 3, "span runs to the end of the caret's word");
+
+        check(store.suggestAt("nasi ", 5, 6).labels.isEmpty(), "nothing after a space");
+        check(store.suggestAt("zzz k", 5, 6).labels.isEmpty(), "a lone one-letter word is too short");
+        check(store.suggestAt("", 0, 6).labels.isEmpty(), "empty line");
+    }
+
+    /** Fuzzy lookups against a 100k-item catalog of made-up dish names. */
+    static void benchFuzzyLookup() {
+        String[] syllables = { "ba", "ko", "ri", "nas", "go", "ren", "mie", "tek", "bu", "lan", "sa", "tay", "pe", "dang", "su", "mo" };
+        Random random = new Random(7);
+        Seller seller = new Seller("F", "Fuzzy Bench", FoodCategory.WARTEG, 4.0, 1, 0, 0);
+        for (int i = 0; i < 100_000; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int w = 0, words = 1 + random.nextInt(3); w < words; w++) {
+                if (w > 0) name.append(' ');
+                for (int k = 0, n = 2 + random.nextInt(2); k < n; k++) name.append(syllables[random.nextInt(syllables.length)]);
+            }
+            seller.addMenuItem(new MenuItem("F-" + i, name.toString(), 10_000, 4.0, 10, "food", "bench"));
+        }
+        long started = System.nanoTime();
+        FuzzyIndex fuzzy = CatalogColumns.build(List.of(seller), 0).fuzzy;
+        long built = System.nanoTime() - started;
+
+        String[] typos = { "rendag", "nasgoreng", "bakori", "tekbulan", "sataypedang", "mosuba", "gorenba", "kobari" };
+        BitSet hits = new BitSet();
+        int n = 20_000;
+        double perQuery = 0;
+        long found = 0;
+        for (int round = 0; round < 2; round++) {  // the first round warms up
+            found = 0;
+            started = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                hits.clear();
+                fuzzy.collect(typos[i % typos.length], hits);
+                found += hits.cardinality();
+            }
+            perQuery = (System.nanoTime() - started) / 1000.0 / n;
+        }
+        System.out.printf("      100,000 items: index built in %d ms, %.1f us per fuzzy lookup (%,d hits)%n",
+            built / 1_000_000, perQuery, found);
+        check(perQuery < 1000, "a fuzzy lookup should stay under a millisecond");
+    }
+
+    /** Search latency as the catalog grows 1000x, next to the linear scan the tag index replaced. */
+    static void benchSearchScaling() {
+        String[] queries = { "nasi goreng", "korean", "spicy beef", "manis murah" };
+        for (int scale : new int[] { 1, 10, 100, 1000 }) {
+            MultiStoreSystem store = new MultiStoreSystem();
+            Random random = new Random(1);
+            List<Seller> fillers = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                Seller filler = new Seller("X" + i, "Filler " + i, FoodCategory.WARTEG, 4.0, 1, 0, 0);
+                store.addSeller(filler);  // menus filled below; the catalog is rebuilt once, by the first search
+                fillers.add(filler);
+            }
+            for (Seller filler : fillers) {
+                for (int j = 0; j < 5 * scale; j++) {
+                    filler.addMenuItem(new MenuItem(filler.getId() + "-" + j, "Item " + j, 10_000 + random.nextInt(30_000), 4.0, 10,
+                        "food", "filler" + random.nextInt(500), "t" + random.nextInt(2000)));
+                }
+            }
+            List<Seller> sellers = store.getSellers();
+            int[][] queryIds = new int[queries.length][];
+            for (int q = 0; q < queries.length; q++) queryIds[q] = TagDictionary.lookup(Arrays.asList(queries[q].split(" ")));
+
+            int n = Math.max(1000, 100_000 / scale);
+            double indexed = 0, linear = 0;
+            for (int round = 0; round < 2; round++) {  // the first round warms up
+                long started = System.nanoTime();
+                // A different price cap per call keeps the query cache from answering
+                for (int i = 0; i < n; i++) store.search(queries[i & 3], null, 20_000 + i % 5000, null, null);
+                indexed = (System.nanoTime() - started) / 1000.0 / n;
+                started = System.nanoTime();
+                for (int i = 0; i < n; i++) linearScan(sellers, queryIds[i & 3], 20_000 + i % 5000);
+                linear = (System.nanoTime() - started) / 1000.0 / n;
+            }
+            System.out.printf("      %,6d items: index %.1f us/query, linear scan %.1f us/query%n",
+                35 + 35 * scale, indexed, linear);
+        }
+    }
+
+    // What search did before the tag index: every item of every seller, then a full sort
+    static List<SellerItem> linearScan(List<Seller> sellers, int[] queryIds, int maxPrice) {
+        List<SellerItem> results = new ArrayList<>();
+        for (Seller s : sellers) {
+            for (MenuItem m : s.getMenu()) {
+                if (m.hasAnyTag(queryIds) && m.getPrice() <= maxPrice) results.add(new SellerItem(s, m));
+            }
+        }
+        results.sort((a, b) -> Integer.compare(b.item.getMatchScore(queryIds), a.item.getMatchScore(queryIds)));
+        return results.subList(0, Math.min(8, results.size()));
+    }
+
+    /** The tag automaton against the split-and-look-up tokenizer it replaced, on the same tags and synonyms. */
+    static void benchQueryParsing() {
+        new MultiStoreSystem();  // interns the catalog's tags
+        Map<String, String> synonyms = Map.of("ayam", "chicken", "sapi", "beef", "ikan", "fish", "murah", "cheap",
+            "pedas", "spicy", "manis", "sweet", "bakar", "grilled", "goreng", "fried", "korea", "korean", "sehat", "healthy");
+        KeywordAutomaton.Builder b = new KeywordAutomaton.Builder();
+        for (int id = 0, n = TagDictionary.size(); id < n; id++) b.add(new String(KeywordAutomaton.normalizeWords(TagDictionary.nameOf(id))), id);
+        synonyms.forEach((k, v) -> b.add(k, TagDictionary.intern(v)));
+        KeywordAutomaton automaton = b.build();
+
+        String[] queries = { "nasi goreng seafood please", "i want korean street food", "something sweet and cold like ice cream",
+            "murah pedas ayam bakar", "cheap food under 20k" };
+        int n = 500_000;
+        for (int round = 0; round < 3; round++) {  // the first round warms up
+            long sink = 0;
+            long started = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                Set<String> tags = new HashSet<>();
+                for (String word : queries[i % queries.length].split("[\\s,+&/]+")) tags.add(synonyms.getOrDefault(word, word));
+                sink += TagDictionary.lookup(tags).length;
+            }
+            double split = (System.nanoTime() - started) / (double) n;
+            started = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                char[] text = KeywordAutomaton.normalizeWords(queries[i % queries.length]);
+                int[] found = new int[8];
+                int[] count = { 0 };
+                automaton.scan(text, text.length, true, (id, start, end) -> {
+                    if (count[0] < found.length) found[count[0]++] = id;
+                });
+                sink += TagDictionary.sortedDistinct(found, count[0]).length;
+            }
+            double scanned = (System.nanoTime() - started) / (double) n;
+            if (round == 2) System.out.printf("      split %.0f ns/query, automaton %.0f ns/query (%d)%n", split, scanned, sink);
+        }
+    }
+
+    // ---- intent routing ----
+
+    // Sample phrases, and 20k random strings of them
+    static List<String> buyerMessages() {
+        String[] phrases = { "hi", "Hello!", "selamat pagi", "help me", "thanks", "Terima kasih", "special offer", "is it open",
+            "recommend something", "recommend food", "what's popular", "best seller", "nasi goreng under 20k", "korean max 15000",
+            "cheap food", "top rated spicy", "fastest burger", "es teh budget 10", "apa yang enak", "hey", "pagi?", "malam!!",
+            "promo dong", "busy?", "favorite dishes", "mie", "quick cepat", "what can you do", "Selamat Malam", "hi there",
+            "ayam bakar dibawah 25k terbaik" };
+        Random random = new Random(3);
+        List<String> messages = new ArrayList<>(Arrays.asList(phrases));
+        for (int i = 0; i < 20_000; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0, n = 1 + random.nextInt(4); j < n; j++) sb.append(j > 0 ? " " : "").append(phrases[random.nextInt(phrases.length)]);
+            if (random.nextInt(5) == 0) sb.append('!');
+            messages.add(sb.toString());
+        }
+        messages.add("x".repeat(60) + " recommend");
+        messages.add("recommend " + "y".repeat(30));
+        return messages;
+    }
+
+    // The String.matches cascade processQuery ran before IntentRouter, without its price slot
+    static String oldRoute(String query) {
+        String lower = query.toLowerCase();
+        if (lower.matches("(hi|hello|hey|halo|hai|pagi|siang|malam|selamat.*)[!.?]*")) return "GREETING";
+        if (lower.contains("help") || lower.contains("bantuan") || lower.contains("apa aja") || lower.contains("what can")
+            || lower.contains("list menu") || lower.contains("show menu")) return "HELP";
+        if (lower.matches(".*(thank|terima|makasih).*")) return "THANKS";
+        if (lower.contains("special") || lower.contains("offer") || lower.contains("promo") || lower.contains("diskon")
+            || lower.contains("discount") || lower.contains("deal")) return "OFFER";
+        if (lower.contains("open") || lower.contains("available") || lower.contains("buka") || lower.contains("tutup")
+            || lower.contains("busy")) return "STATUS";
+        if (lower.matches(".*(recommend|suggest|rekomendasi|saranin|what should|apa yang).*") && !lower.contains("food")
+            && query.length() < 50) return "RECOMMEND";
+        if (lower.matches(".*(popular|favorit|favorite|best seller|terlaris).*")) return "POPULAR";
+        boolean rating = lower.contains("rating") || lower.contains("best") || lower.contains("top") || lower.contains("terbaik");
+        boolean speed = lower.contains("fastest") || lower.contains("cepat") || lower.contains("quick") || lower.contains("tercepat");
+        return "SEARCH " + rating + " " + speed;
+    }
+
+    static String newRoute(String query) {
+        IntentRouter.Route r = IntentRouter.route(query);
+        return r.intent == IntentRouter.Intent.SEARCH ? "SEARCH " + r.byRating + " " + r.bySpeed : r.intent.name();
+    }
+
+    /** The router classifies like the cascade it replaced; prices are covered by priceRangeParsing. */
+    static void intentRoutesMatchOldCascade() {
+        for (String m : buyerMessages()) check(newRoute(m).equals(oldRoute(m)), m + ": " + newRoute(m) + " vs " + oldRoute(m));
+    }
+
+    static void benchIntentRouting() {
+        List<String> messages = buyerMessages();
+        for (int round = 0; round < 5; round++) {  // the first rounds warm up
+            long sink = 0;
+            long started = System.nanoTime();
+            for (String m : messages) sink += oldRoute(m).length();
+            long old = System.nanoTime() - started;
+            started = System.nanoTime();
+            for (String m : messages) sink += IntentRouter.route(m).intent.ordinal();
+            long routed = System.nanoTime() - started;
+            if (round == 4) System.out.printf("      cascade %,.0f msg/s, router %,.0f msg/s (%d)%n",
+                messages.size() / (old / 1e9), messages.size() / (routed / 1e9), sink);
+        }
+    }
+
+    // ---- codec and journal ----
+
+    // One message of every shape the codec has to carry
+    static List<ChatMessage> sampleMessages(MultiStoreSystem store, Order order) {
+        List<SellerItem> items = store.search("", null, true, null);
+        ChatMessage text = new ChatMessage("Buyer", "BUYER", "nasi goreng pedas 🍛 murah\tya", MessageType.TEXT);
+        text.topics = List.of(ChatTopic.session("S1"), ChatTopic.seller(items.get(0).seller.getName()));
+        ChatMessage recommendation = new ChatMessage("FoodChat AI", "SELLER", "Here are some:", MessageType.STORE_RECOMMENDATION);
+        recommendation.sellerItems = items;
+        recommendation.topics = List.of(ChatTopic.BUYER);
+        ChatMessage offer = new ChatMessage("FoodChat AI", "SELLER", "", MessageType.SPECIAL_OFFER);
+        offer.specialOffer = store.getAllOffers().get(0);
+        offer.topics = List.of();
+        ChatMessage update = new ChatMessage("System", "SYSTEM", "Order update", MessageType.ORDER_UPDATE);
+        update.order = order;
+        update.topics = List.of(ChatTopic.order(order.getOrderId()));
+        ChatMessage emptyItems = new ChatMessage("x", "BUYER", "", MessageType.TEXT);
+        emptyItems.sellerItems = new ArrayList<>();
+        emptyItems.topics = List.of(ChatTopic.SYSTEM);
+        return List.of(text, recommendation, offer, update, emptyItems);
+    }
+
+    static void checkSameMessage(ChatMessage got, ChatMessage want) {
+        check(got.senderName.equals(want.senderName) && got.senderType.equals(want.senderType)
+            && got.message.equals(want.message) && got.type == want.type, "fields of " + want.message);
+        check(FoodCodec.toMillis(got.timestamp) == FoodCodec.toMillis(want.timestamp), "time");
+        check(got.topics.equals(want.topics), "topics " + got.topics);
+        check(Objects.equals(got.sellerItems == null ? null : got.sellerItems.size(),
+            want.sellerItems == null ? null : want.sellerItems.size()), "item count");
+        if (want.sellerItems != null) {
+            for (int i = 0; i < want.sellerItems.size(); i++) {
+                check(got.sellerItems.get(i).item == want.sellerItems.get(i).item
+                    && got.sellerItems.get(i).seller == want.sellerItems.get(i).seller, "item reference " + i);
+            }
+        }
+        check(got.specialOffer == want.specialOffer, "offer reference");
+        check(got.order == want.order, "order reference");
+    }
+
+    static Order sampleOrder(MultiStoreSystem store) {
+        List<SellerItem> items = store.search("", null, true, null);
+        ShoppingCart cart = new ShoppingCart();
+        cart.addItem(items.get(0), 2);
+        cart.addItem(items.get(1), 1);
+        return new Order("Budi Santoso", "0812-555", "Jl. Merdeka 5\nRT 3", "pedas ya 🌶", cart.getItems(), cart.getTotal(), items.get(0).seller);
+    }
+
+    static void codecRoundTrip() {
+        MultiStoreSystem store = new MultiStoreSystem();
+        Order order = sampleOrder(store);
+        order.updateStatus(OrderStatus.ACCEPTED);
+        order.updateStatus(OrderStatus.BUSY);
+        order.updateStatus(OrderStatus.ON_PROCESS);
+        order.updateStatus(OrderStatus.DRIVER_ON_WAY);
+        order.updateStatus(OrderStatus.COMPLETED);  // in history now, so the store's resolver finds it
+        FoodCodec.Writer w = new FoodCodec.Writer(16);
+        FoodCodec.Reader r = new FoodCodec.Reader(store.codecResolver());
+        List<ChatMessage> messages = sampleMessages(store, order);
+        for (ChatMessage m : messages) checkSameMessage(r.begin(w.begin().writeMessage(m).toByteArray()).readMessage(), m);
+
+        // Several entities in one unit share its string dictionary
+        w.begin();
+        for (ChatMessage m : messages) w.writeMessage(m);
+        w.writeOrder(order);
+        r.begin(w.toByteArray());
+        for (ChatMessage m : messages) checkSameMessage(r.readMessage(), m);
+        Order o = r.readOrder();
+        check(o.getOrderId().equals(order.getOrderId()) && o.getCustomerName().equals(order.getCustomerName())
+            && o.getPhone().equals(order.getPhone()) && o.getAddress().equals(order.getAddress())
+            && o.getNotes().equals(order.getNotes()) && o.getSeller() == order.getSeller()
+            && o.getStatus() == OrderStatus.COMPLETED && o.getVersion() == order.getVersion()
+            && o.getSubtotal() == order.getSubtotal() && o.getEstimatedMinutes() == order.getEstimatedMinutes()
+            && FoodCodec.toMillis(o.getOrderTime()) == FoodCodec.toMillis(order.getOrderTime()), "order fields");
+        check(o.getItems().size() == 2 && o.getItems().get(0).getQuantity() == 2
+            && o.getItems().get(1).getSellerItem().item == order.getItems().get(1).getSellerItem().item, "order items");
+
+        for (long v : new long[] {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, Long.MAX_VALUE, -1}) {
+            w.begin().writeVarLong(v);
+            check(r.begin(w.toByteArray()).readVarLong() == v, "varint " + v);
+        }
+        byte[] future = w.begin().writeMessage(messages.get(0)).toByteArray();
+        future[0] = (byte) (FoodCodec.VERSION + 1);
+        try {
+            r.begin(future);
+            check(false, "a unit from a newer codec version was accepted");
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    static void journalRoundTrip() throws Exception {
+        MultiStoreSystem store = new MultiStoreSystem();
+        Order order = sampleOrder(store);
+        FoodCodec.Resolver resolver = new FoodCodec.Resolver() {
+            FoodCodec.Resolver catalog = store.codecResolver();
+            public SellerItem item(String sellerName, String itemId) { return catalog.item(sellerName, itemId); }
+            public SpecialOffer offer(String title) { return catalog.offer(title); }
+            public Seller seller(String sellerName) { return catalog.seller(sellerName); }
+            public Order order(String orderId) { return orderId.equals(order.getOrderId()) ? order : null; }
+        };
+        List<ChatMessage> messages = sampleMessages(store, order);
+        java.nio.file.Path dir = tempDir("journal");
+        ChatJournal journal = ChatJournal.open(dir);
+        for (int i = 0; i < 1000; i++) journal.append(messages.get(i % messages.size()));
+        journal.close();
+
+        journal = ChatJournal.open(dir);
+        check(journal.getRecordCount() == 1000, "records after reopen " + journal.getRecordCount());
+        List<ChatMessage> tail = journal.readTail(messages.size(), resolver);
+        for (int i = 0; i < messages.size(); i++) checkSameMessage(tail.get(i), messages.get(i));
+        ChatMessage extra = new ChatMessage("Seller", "SELLER", "after reopen", MessageType.TEXT);
+        extra.topics = List.of(ChatTopic.BUYER);
+        journal.append(extra);
+        journal.close();
+        journal = ChatJournal.open(dir);
+        check(journal.getRecordCount() == 1001 && journal.readTail(1, resolver).get(0).message.equals("after reopen"), "append after reopen");
+        journal.close();
+    }
+
+    /** A record with a torn payload ends the journal on reopen; later records are dropped and appends resume there. */
+    static void journalCutsTornRecord() throws Exception {
+        FoodCodec.Resolver resolver = new MultiStoreSystem().codecResolver();
+        java.nio.file.Path dir = tempDir("journal");
+        ChatJournal journal = ChatJournal.open(dir);
+        for (int i = 0; i < 10; i++) journal.append(message(i, "message " + i));
+        journal.close();
+
+        java.nio.file.Path segment = dir.resolve("chat-000000.seg");
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(segment,
+                java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE)) {
+            java.nio.MappedByteBuffer b = ch.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            int at = ChatJournal.HEADER_BYTES;
+            for (int k = 0; k < 6; k++) at += ChatJournal.RECORD_HEADER_BYTES + b.getInt(at);
+            int payload = at + ChatJournal.RECORD_HEADER_BYTES;
+            b.put(payload + 3, (byte) ~b.get(payload + 3));  // record 6 keeps its length but not its bytes
+            b.force();
+        }
+
+        journal = ChatJournal.open(dir);
+        check(journal.getRecordCount() == 6, "records before the torn one: " + journal.getRecordCount());
+        journal.append(message(99, "after the tear"));
+        journal.close();
+        journal = ChatJournal.open(dir);
+        List<ChatMessage> all = new ArrayList<>();
+        journal.replay(resolver, all::add);
+        check(all.size() == 7, "records after appending: " + all.size());
+        for (int i = 0; i < 6; i++) check(all.get(i).message.equals("message " + i), "kept record " + i);
+        check(all.get(6).message.equals("after the tear"), "append resumes at the tear");
+        journal.close();
+    }
+
+    // ---- orders ----
+
+    /** Ids are unique across threads and restarts; without a durable lease there are no ids at all. */
+    static void orderIdLeases() throws Exception {
+        java.nio.file.Path hwm = tempDir("ids").resolve("ids-node-0.hwm");
+        OrderIdGenerator ids = new OrderIdGenerator(hwm, 0, 10);
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> runs = new ArrayList<>();
+        for (int t = 0; t < 4; t++) runs.add(pool.submit(() -> { for (int i = 0; i < 1000; i++) check(seen.add(ids.nextNumber()), "duplicate id"); }));
+        for (Future<?> f : runs) f.get();
+        pool.shutdown();
+        long max = Collections.max(seen);
+
+        OrderIdGenerator restarted = new OrderIdGenerator(hwm, 0, 10);
+        check(restarted.nextNumber() > max, "numbering carries on above the last run");
+        check(new OrderIdGenerator(hwm, 3, 10).next().startsWith("ORD-3-"), "node prefix");
+
+        java.nio.file.Path blocker = tempDir("ids").resolve("file");
+        java.nio.file.Files.createFile(blocker);
+        OrderIdGenerator broken = new OrderIdGenerator(blocker.resolve("ids.hwm"), 0, 10);  // parent is a file
+        try {
+            broken.next();
+            check(false, "handed out an id it could not persist");
+        } catch (java.io.UncheckedIOException expected) {}
+    }
+
+    /**
+     * The transition table has no way back, and threads racing random moves
+     * over shared orders get one listener call per successful move, a gapless
+     * run of versions, at most one BUSY delay and one history entry each.
+     */
+    static void orderStatusRaces() throws Exception {
+        Order o = sampleOrder(new MultiStoreSystem());
+        int estimate = o.getEstimatedMinutes();
+        check(!o.updateStatus(OrderStatus.COMPLETED), "skipped ahead");
+        check(o.updateStatus(OrderStatus.ACCEPTED) && !o.updateStatus(OrderStatus.ACCEPTED), "accepted twice");
+        check(o.updateStatus(OrderStatus.BUSY) && o.getEstimatedMinutes() == estimate + 20, "busy delay");
+        check(!o.updateStatus(OrderStatus.ACCEPTED), "busy back to accepted");
+        check(o.updateStatus(OrderStatus.ON_PROCESS) && !o.updateStatus(OrderStatus.BUSY), "busy again while cooking");
+        check(!o.updateStatus(OrderStatus.REJECTED), "rejected while cooking");
+
+        Order template = sampleOrder(new MultiStoreSystem());
+        int orders = 2000, threads = 16, moves = 20_000;
+        Order[] shared = new Order[orders];
+        AtomicInteger[] wins = new AtomicInteger[orders];
+        List<Set<Integer>> versions = new ArrayList<>();
+        for (int i = 0; i < orders; i++) {
+            shared[i] = new Order(template.getCustomerName(), template.getPhone(), template.getAddress(), template.getNotes(),
+                template.getItems(), template.getSubtotal(), template.getSeller());
+            wins[i] = new AtomicInteger();
+            Set<Integer> seen = ConcurrentHashMap.newKeySet();
+            versions.add(seen);
+            shared[i].addStatusListener(new OrderStatusListener() {
+                public void onStatusChanged(Order order) {}
+                public void onStatusChanged(Order order, OrderStatus status, int version) {
+                    check(seen.add(version), "version " + version + " heard twice");
+                }
+            });
+        }
+        OrderStatus[] all = OrderStatus.values();
+        OrderStatus[] forward = { OrderStatus.ACCEPTED, OrderStatus.ON_PROCESS, OrderStatus.DRIVER_ON_WAY, OrderStatus.COMPLETED };
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> runs = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            runs.add(pool.submit(() -> {
+                go.await();
+                for (int i = 0; i < moves; i++) {
+                    int k = random.nextInt(orders);
+                    if (shared[k].updateStatus(all[random.nextInt(all.length)])) wins[k].incrementAndGet();
+                }
+                for (int k = 0; k < orders; k++) {  // then drive every order to the end
+                    for (OrderStatus s : forward) if (shared[k].updateStatus(s)) wins[k].incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        go.countDown();
+        for (Future<?> f : runs) f.get();
+        pool.shutdown();
+
+        Set<String> history = new HashSet<>();
+        for (Order h : OrderHistoryManager.getCompletedOrders()) check(history.add(h.getOrderId()), "in history twice: " + h.getOrderId());
+        for (int i = 0; i < orders; i++) {
+            Order s = shared[i];
+            check(s.getStatus().isFinal(), "not final: " + s.getStatus());
+            check(versions.get(i).size() == wins[i].get() && s.getVersion() == wins[i].get(), "listener calls != moves");
+            check(wins[i].get() <= 5, "more moves than the longest path: " + wins[i].get());
+            check(s.getEstimatedMinutes() <= template.getEstimatedMinutes() + 20, "delayed as busy more than once");
+            check(history.contains(s.getOrderId()) == (s.getStatus() == OrderStatus.COMPLETED), "history disagrees with status");
+        }
+    }
+
+    /** Id throughput from 16 threads, for large and small lease blocks (each lease is an fsync). */
+    static void benchOrderIds() throws Exception {
+        int threads = 16, perThread = 250_000;
+        for (int block : new int[] { 1000, 100 }) {
+            OrderIdGenerator ids = new OrderIdGenerator(tempDir("ids-bench").resolve("ids-node-0.hwm"), 0, block);
+            long[][] got = new long[threads][perThread];
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CountDownLatch go = new CountDownLatch(1);
+            List<Future<?>> runs = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long[] mine = got[t];
+                runs.add(pool.submit(() -> {
+                    go.await();
+                    for (int i = 0; i < perThread; i++) mine[i] = ids.nextNumber();
+                    return null;
+                }));
+            }
+            long started = System.nanoTime();
+            go.countDown();
+            for (Future<?> f : runs) f.get();
+            long elapsed = System.nanoTime() - started;
+            pool.shutdown();
+
+            long[] all = new long[threads * perThread];
+            for (int t = 0; t < threads; t++) System.arraycopy(got[t], 0, all, t * perThread, perThread);
+            Arrays.sort(all);
+            for (int i = 1; i < all.length; i++) check(all[i] != all[i - 1], "duplicate id " + all[i]);
+            System.out.printf("      block %4d: %,d ids in %d ms (%.1f M ids/s)%n",
+                block, all.length, elapsed / 1_000_000, all.length / (elapsed / 1e3));
+        }
+    }
+
+    static Order placeOrder(OrderLog log, Order template) {
+        Order o = new Order(template.getCustomerName(), template.getPhone(), template.getAddress(), template.getNotes(),
+            template.getItems(), template.getSubtotal(), template.getSeller());
+        log.created(o);
+        return o;
+    }
+
+    static void complete(Order o) {
+        for (OrderStatus s : List.of(OrderStatus.ACCEPTED, OrderStatus.ON_PROCESS, OrderStatus.DRIVER_ON_WAY, OrderStatus.COMPLETED)) {
+            o.updateStatus(s);
+        }
+    }
+
+    /** Final orders leave the log; a snapshot holds the open ones plus a bounded window of completed ones. */
+    static void orderLogCompactsFinalOrders() throws Exception {
+        MultiStoreSystem store = new MultiStoreSystem();
+        Order template = sampleOrder(store);
+        java.nio.file.Path dir = tempDir("orders");
+        OrderLog log = OrderLog.open(dir, store.codecResolver());
+        List<Order> open = new ArrayList<>();
+        for (int i = 0; i < OrderLog.KEEP_COMPLETED + 100; i++) complete(placeOrder(log, template));
+        for (int i = 0; i < 50; i++) placeOrder(log, template).updateStatus(OrderStatus.REJECTED);
+        for (int i = 0; i < 30; i++) open.add(placeOrder(log, template));
+        open.get(0).updateStatus(OrderStatus.ACCEPTED);
+        check(log.size() == 30, "only open orders stay in the log: " + log.size());
+        check(log.snapshot() == 30 + OrderLog.KEEP_COMPLETED, "snapshot holds open orders plus the completed window");
+
+        complete(open.remove(1));  // after the snapshot: only its tail knows
+        Order late = placeOrder(log, template);
+        log.close();
+
+        OrderLog reopened = OrderLog.open(dir, store.codecResolver());
+        List<Order> recovered = reopened.getRecoveredOrders();
+        check(recovered.size() == OrderLog.KEEP_COMPLETED + 30, "recovered " + recovered.size());
+        check(reopened.size() == 30, "open after recovery: " + reopened.size());
+        check(reopened.find(open.get(0).getOrderId()).getStatus() == OrderStatus.ACCEPTED, "status survives");
+        check(reopened.find(late.getOrderId()) != null, "order from the tail");
+        for (Order o : recovered) check(o.getStatus() != OrderStatus.REJECTED, "rejected orders are dropped");
+        reopened.close();
+    }
+
+    /**
+     * Every page query over a few thousand completed orders, walked cursor by
+     * cursor, gives the same orders as filtering the whole history newest first.
+     */
+    static void historyPagesMatchBruteForce() {
+        MultiStoreSystem store = new MultiStoreSystem();
+        List<SellerItem> items = store.search("", null, true, null);
+        List<Seller> sellers = store.getSellers().subList(0, 4);
+        String[] phones = {"0811-1", "0811-2", "0811-3", "0811-4", "0811-5", "0811-6", "0811-7"};
+        OrderHistoryStore history = new OrderHistoryStore();
+        List<Order> added = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        Random rnd = new Random(25);
+        long base = 1_767_225_600_000L, at = base;
+        for (int i = 0; i < 3000; i++) {
+            Seller seller = sellers.get(rnd.nextInt(sellers.size()));
+            ShoppingCart cart = new ShoppingCart();
+            cart.addItem(items.get(i % items.size()), 1);
+            Order o = new Order("Pembeli " + i, phones[rnd.nextInt(phones.length)], "Jl. Sudirman " + i, "",
+                cart.getItems(), cart.getTotal(), seller);
+            at += rnd.nextInt(3) * 1000L;  // some orders share a completion time
+            check(history.add(o, at), "added " + i);
+            added.add(o);
+            times.add(at);
+        }
+        check(!history.add(added.get(7), at), "an order is only added once");
+
+        long[][] windows = {{Long.MIN_VALUE, Long.MAX_VALUE}, {base + 500_000, base + 2_100_000}, {at, at + 1}, {at + 1, Long.MAX_VALUE}};
+        List<String> sellerNames = new ArrayList<>();
+        sellerNames.add(null);
+        for (Seller s : sellers) sellerNames.add(s.getName());
+        sellerNames.add("Warung Tidak Ada");
+        List<String> phoneList = new ArrayList<>(Arrays.asList(phones));
+        phoneList.add(0, null);
+        int queries = 0;
+        for (String seller : sellerNames) {
+            for (String phone : phoneList) {
+                for (long[] w : windows) {
+                    List<Order> want = new ArrayList<>();
+                    for (int i = added.size() - 1; i >= 0; i--) {
+                        Order o = added.get(i);
+                        if (seller != null && !o.getSeller().getName().equals(seller)) continue;
+                        if (phone != null && !o.getPhone().equals(phone)) continue;
+                        if (times.get(i) < w[0] || times.get(i) >= w[1]) continue;
+                        want.add(o);
+                    }
+                    // 7 and 50 usually leave a short last page; the full count and a divisor of it end exactly full
+                    Set<Integer> limits = new TreeSet<>(List.of(1, 7, 50, Math.max(1, want.size())));
+                    for (int d = 2; d < want.size(); d++) {
+                        if (want.size() % d == 0) { limits.add(want.size() / d); break; }
+                    }
+                    for (int limit : limits) {
+                        String what = seller + "/" + phone + "/" + w[0] + ".." + w[1] + " by " + limit;
+                        List<Order> got = new ArrayList<>();
+                        int cursor = OrderHistoryStore.NEWEST, pages = 0;
+                        while (true) {
+                            OrderHistoryStore.Page page = history.page(seller, phone, w[0], w[1], cursor, limit);
+                            pages++;
+                            check(page.orders.size() <= limit, "page over limit: " + what);
+                            check(!page.orders.isEmpty() || pages == 1, "empty page after a cursor: " + what);
+                            check(!page.hasMore() || page.orders.size() == limit, "short page with a cursor: " + what);
+                            got.addAll(page.orders);
+                            if (!page.hasMore()) break;
+                            cursor = page.next;
+                        }
+                        check(got.equals(want), "pages differ from brute force: " + what + " (" + got.size() + " vs " + want.size() + ")");
+                        check(pages == Math.max(1, (want.size() + limit - 1) / limit), "page count: " + what + " took " + pages);
+                        queries++;
+                    }
+                }
+            }
+        }
+        check(queries > 500, "queries run: " + queries);
+        check(history.page(OrderHistoryStore.NEWEST, 3000).orders.equals(reversed(added)), "one page of everything");
+        check(!history.page(OrderHistoryStore.NEWEST, 3000).hasMore(), "an exactly full page of everything ends the history");
+    }
+
+    static <T> List<T> reversed(List<T> list) {
+        List<T> out = new ArrayList<>(list);
+        Collections.reverse(out);
+        return out;
+    }
+
+    /** Recovery time with and without a snapshot, for a log where most orders have finished. */
+    static void benchOrderLogRecovery() throws Exception {
+        MultiStoreSystem store = new MultiStoreSystem();
+        Order template = sampleOrder(store);
+        java.nio.file.Path dir = tempDir("orders-bench");
+        OrderLog log = OrderLog.open(dir, store.codecResolver());
+        int total = 200_000;
+        for (int i = 0; i < total; i++) {
+            Order o = placeOrder(log, template);
+            if (i % 10 != 0) complete(o);
+        }
+        log.close();
+        for (int round = 0; round < 2; round++) {
+            long size = 0;
+            try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+                for (java.nio.file.Path f : (Iterable<java.nio.file.Path>) files::iterator) size += java.nio.file.Files.size(f);
+            }
+            OrderLog reopened = OrderLog.open(dir, store.codecResolver());
+            System.out.printf("      %s: %,d bytes on disk, %d orders recovered (%d open) in %d ms%n",
+                round == 0 ? "log only" : "snapshot", size, reopened.getRecoveredOrders().size(), reopened.size(),
+                reopened.getRecoveryMillis());
+            if (round == 0) reopened.snapshot();
+            reopened.close();
+        }
+    }
+
+    // ---- chat delivery ----
+
+    /**
+     * Threads adding, notifying and removing at once: listeners registered
+     * throughout hear every notification, a thread always reaches the
+     * listener it just added, and nothing is lost or left behind.
+     */
+    static void listenerRegistryUnderContention() throws Exception {
+        ListenerRegistry<Runnable> registry = new ListenerRegistry<>();
+        int threads = 8, rounds = 20_000;
+        AtomicLong[] steady = new AtomicLong[4];
+        for (int i = 0; i < steady.length; i++) {
+            AtomicLong calls = steady[i] = new AtomicLong();
+            registry.add(calls::incrementAndGet);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> runs = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            runs.add(pool.submit(() -> {
+                go.await();
+                for (int r = 0; r < rounds; r++) {
+                    boolean[] reached = { false };
+                    Runnable own = () -> reached[0] = true;
+                    check(registry.add(own), "add");
+                    check(!registry.add(own), "added twice");
+                    registry.forEach(Runnable::run);
+                    check(reached[0], "own listener missed");
+                    check(registry.remove(own), "remove");
+                    check(!registry.remove(own), "removed twice");
+                }
+                return null;
+            }));
+        }
+        go.countDown();
+        for (Future<?> f : runs) f.get();
+        pool.shutdown();
+        check(registry.size() == steady.length, "left behind: " + registry.size());
+        for (AtomicLong calls : steady) check(calls.get() == (long) threads * rounds, "steady listener heard " + calls.get());
+    }
+
+    /** A journal that fails (here: closed underneath the bridge) must not stop async delivery. */
+    static void dispatcherSurvivesJournalFailure() throws Exception {
+        ChatBridge chat = new ChatBridge();
+        ChatJournal journal = ChatJournal.open(tempDir("journal"));
+        chat.attachJournal(journal, new MultiStoreSystem().codecResolver(), 0);
+        AtomicInteger received = new AtomicInteger();
+        chat.subscribe(ChatTopic.SYSTEM, m -> received.incrementAndGet());
+        chat.startAsync(4, ChatBridge.Backpressure.BLOCK);
+        journal.close();
+
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        Future<?> sends = sender.submit(() -> { for (int i = 0; i < 50; i++) chat.sendSystem("message " + i); });
+        sends.get(10, TimeUnit.SECONDS);  // a dead dispatcher leaves this BLOCK sender stuck on the full queue
+        sender.shutdown();
+        chat.close();
+        check(received.get() == 50, "delivered " + received.get() + " of 50");
+        chat.sendSystem("after close");
+        check(received.get() == 51, "sends after close are delivered in place");
+    }
+
+    /**
+     * A newer query silences the one before it, an answer that overruns its
+     * deadline becomes the timeout note, and queries racing on one
+     * conversation never trip over a half-built reply.
+     */
+    static void botRepliesSupersedeAndExpire() throws Exception {
+        ChatBridge chat = new ChatBridge();
+        BlockingQueue<String> said = new LinkedBlockingQueue<>();
+        chat.subscribe(ChatTopic.BUYER, m -> said.add(m.message));
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        FoodChatBot bot = new FoodChatBot(chat, new MultiStoreSystem(), scheduler, workers, 300);
+
+        bot.respond("hello");
+        bot.respond("thanks");
+        String first = said.poll(5, TimeUnit.SECONDS);
+        check("You're welcome! 😊 Anything else?".equals(first), "newer reply delivered: " + first);
+        String stale = said.poll(1500, TimeUnit.MILLISECONDS);
+        check(stale == null, "superseded reply delivered: " + stale);
+
+        CountDownLatch release = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) workers.submit(() -> { release.await(); return null; });  // no worker free to answer
+        bot.respond("hello");
+        String note = said.poll(5, TimeUnit.SECONDS);
+        check(note != null && note.startsWith("⏱️"), "timeout note: " + note);
+        release.countDown();
+        release.countDown();
+        stale = said.poll(1500, TimeUnit.MILLISECONDS);
+        check(stale == null, "expired reply delivered: " + stale);
+
+        int threads = 4, rounds = 2000;
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> runs = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            runs.add(callers.submit(() -> {
+                go.await();
+                for (int r = 0; r < rounds; r++) bot.respond("thanks");
+                return null;
+            }));
+        }
+        go.countDown();
+        for (Future<?> f : runs) f.get();  // a superseded reply without its deadline threw here
+        callers.shutdown();
+        said.clear();
+        bot.respond("thanks");
+        check("You're welcome! 😊 Anything else?".equals(said.poll(5, TimeUnit.SECONDS)), "answers after the race");
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    // ---- chat history ----
+
+    static ChatMessage message(int i, String text) {
+        ChatMessage m = new ChatMessage("Buyer", "BUYER", text, MessageType.TEXT,
+            java.time.LocalDateTime.of(2026, 1, 1, 12, 0).plusSeconds(i));
+        m.topics = List.of(ChatTopic.BUYER);
+        return m;
+    }
+
+    /** The index keeps only its newest one to two windows of documents, and still ranks and filters them. */
+    static void chatIndexIsBounded() {
+        ChatIndex index = new ChatIndex(100);
+        for (int i = 0; i < 1000; i++) index.add(message(i, "pesan nomor n" + i + (i % 2 == 0 ? " nasi goreng" : " goreng nasi")));
+        check(index.size() == 1000, "ids keep counting");
+        check(index.getIndexedCount() >= 100 && index.getIndexedCount() <= 200, "indexed " + index.getIndexedCount());
+
+        int[] all = index.search("pesan", Long.MIN_VALUE, Long.MAX_VALUE, 1000);
+        check(all.length == index.getIndexedCount() && all[0] == 999, "newest first over the window");
+        for (int k = 1; k < all.length; k++) check(all[k] == all[k - 1] - 1, "descending ids across generations");
+        check(index.search("n5", Long.MIN_VALUE, Long.MAX_VALUE, 10).length == 0, "old documents are dropped");
+        check(Arrays.equals(index.search("n950", Long.MIN_VALUE, Long.MAX_VALUE, 10), new int[] { 950 }), "recent term");
+
+        long from = FoodCodec.toMillis(message(880, "").timestamp), to = FoodCodec.toMillis(message(920, "").timestamp);
+        int[] phrase = index.search("\"nasi goreng\"", from, to, 100);
+        check(phrase.length == 21 && phrase[0] == 920 && phrase[20] == 880, "phrase in a time range spanning generations: " + phrase.length);
+    }
+
+    /** Messages over writeUTF's 64 KB limit spill and read back like any other. */
+    static void historySpillsLongMessages() throws Exception {
+        ChatHistory history = new ChatHistory(4, tempDir("history").resolve("spill.seg"));
+        String longText = "x".repeat(70_000) + " 🍜";
+        for (int i = 0; i < 12; i++) history.append(message(i, i == 2 ? longText : "message " + i));
+        check(history.getSpilledCount() == 8, "spilled " + history.getSpilledCount());
+        List<ChatMessage> recent = history.getRecent(12);
+        check(recent.size() == 12, "recent " + recent.size());
+        check(recent.get(2).message.equals(longText), "long message intact");
+        check(recent.get(11).message.equals("message 11"), "newest last");
+        check(history.getSince(java.time.LocalDateTime.of(2026, 1, 1, 12, 0, 2)).get(0).message.equals(longText), "getSince");
+        check(history.get(new long[] {2, 9}).get(0).message.equals(longText), "get by sequence");
+    }
+
+    /** Once spilling fails, reads return what is really left instead of reading past the file. */
+    static void historyReadsAfterSpillFailure() throws Exception {
+        java.nio.file.Path notAFile = tempDir("history");  // opening a directory as the spill file fails
+        ChatHistory history = new ChatHistory(4, notAFile);
+        for (int i = 0; i < 12; i++) history.append(message(i, "message " + i));
+        check(history.getSpilledCount() == 0, "nothing on disk");
+        check(history.getRecent(12).size() == 4, "recent: the ring only");
+        check(history.getSince(java.time.LocalDateTime.of(2026, 1, 1, 0, 0)).size() == 4, "since: the ring only");
+        List<ChatMessage> got = history.get(new long[] {0, 5, 11});
+        check(got.size() == 1 && got.get(0).message.equals("message 11"), "get: only sequence numbers still held");
+
+        // Failing later, on a buffered flush, loses the records that never reached the file
+        java.nio.file.Path full = java.nio.file.Paths.get("/dev/full");
+        if (!java.nio.file.Files.isWritable(full)) return;
+        history = new ChatHistory(4, full);
+        for (int i = 0; i < 2000; i++) history.append(message(i, "message " + i));
+        check(history.getSpilledCount() == 0, "/dev/full holds nothing, counted " + history.getSpilledCount());
+        check(history.getRecent(2000).size() == 4 && history.getSince(java.time.LocalDateTime.of(2026, 1, 1, 0, 0)).size() == 4,
+            "reads after a failed flush");
+    }
+
+    // ---- sessions ----
+
+    /** 10k buyers at once through search, cart and checkout; closing them gives all their memory back. */
+    static void tenThousandSessions() throws Exception {
+        FoodChatEngine engine = new FoodChatEngine();
+        engine.start(0);
+        SessionManager sessions = new SessionManager(engine, 60_000);
+        List<SellerItem> menu = engine.store().search("", null, null, null, null);
+        int count = 10_000;
+        Set<String> orderIds = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        List<Future<String>> runs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int n = i;
+            runs.add(pool.submit(() -> {
+                BuyerSession session = sessions.open("Buyer " + n);
+                sessions.say(session.getId(), n % 2 == 0 ? "nasi goreng" : "something spicy under 30k");
+                session.getCart().addItem(menu.get(n % menu.size()), 1 + n % 3);
+                Order order = sessions.checkout(session.getId(), "0812-" + n, "Jl. " + n, "", session.getCart().getPrimarySeller());
+                check(orderIds.add(order.getOrderId()), "duplicate order id");
+                check(session.getCart().getItems().isEmpty(), "cart not emptied");
+                return session.getId();
+            }));
+        }
+        List<String> ids = new ArrayList<>();
+        for (Future<String> f : runs) ids.add(f.get());
+        pool.shutdown();
+        check(sessions.size() == count, "open sessions: " + sessions.size());
+        long perSession = sessions.getEstimatedBytes() / count;
+        check(perSession < 8 * 1024, "bytes per session: " + perSession);
+
+        BuyerSession first = sessions.get(ids.get(0));
+        for (String id : ids) sessions.close(id);
+        check(sessions.size() == 0 && sessions.getEstimatedBytes() == 0, "sessions left behind");
+        check(engine.chat().getOpenConversations(first.getTopic()).isEmpty(), "conversation not forgotten");
+        engine.shutdown();
+        System.out.printf("      %d sessions, about %,d bytes each while open%n", count, perSession);
+    }
+
+    // ---- gateway ----
+
+    /** CHECKOUT picks the cart's primary seller; a seller may only talk in conversations that opened it. */
+    static void gatewayCheckoutAndSellerTopics() throws Exception {
+        FoodChatEngine engine = new FoodChatEngine();
+        SessionManager sessions = new SessionManager(engine, 60_000);
+        List<Seller> sellers = engine.store().getSellers();
+        Seller first = sellers.get(0), second = sellers.get(1);
+        try (ChatGateway gateway = ChatGateway.start(engine, sessions, 0);
+             GatewayClient buyer = new GatewayClient(gateway.getPort());
+             GatewayClient other = new GatewayClient(gateway.getPort());
+             GatewayClient seller = new GatewayClient(gateway.getPort())) {
+            buyer.send("BUYER", "Budi");
+            String session = buyer.reply()[1];
+            other.send("BUYER", "Sari");
+            String otherSession = other.reply()[1];
+            seller.send("SELLER", second.getName());
+            check(seller.reply()[0].equals("OK"), "seller sign-in");
+
+            buyer.send("ADD", first.getName(), first.getMenu().get(0).getId(), "1");
+            buyer.reply();
+            buyer.send("ADD", second.getName(), second.getMenu().get(0).getId(), "1");
+            buyer.reply();
+            buyer.send("ADD", second.getName(), second.getMenu().get(1).getId(), "1");
+            buyer.reply();
+            buyer.send("CHECKOUT", "0812", "Jl. Merdeka 1", "");
+            buyer.send("SEARCH", "ayam");  // queued behind the checkout, answered after it
+            String[] order = buyer.reply();
+            check(order[0].equals("ORDER") && order[2].equals(second.getName()), "primary seller: " + String.join(" ", order));
+            check(buyer.reply()[0].equals("RESULTS"), "frames after a checkout are still handled");
+
+            seller.send("SAY", "system", "free food for everyone");
+            check(seller.reply()[0].equals("ERR"), "seller into the system topic");
+            seller.send("SAY", "session:" + otherSession, "hello");
+            check(seller.reply()[0].equals("ERR"), "seller into a buyer that never opened it");
+            seller.send("SAY", "session:" + session, "on its way");
+            String[] msg;
+            do { msg = buyer.receive(); } while (!msg[msg.length - 1].equals("on its way"));
+            check(msg[3].equals(second.getName()), "seller message reaches its buyer");
+        } finally {
+            engine.shutdown();
+        }
+    }
+}
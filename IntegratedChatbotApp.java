@@ -5,27 +5,41 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.stream.Collectors;
 import javax.swing.*;
 import javax.swing.Timer;
 import javax.swing.border.*;
+import javax.swing.event.*;
 
 // ===============================
 // MAIN ENTRY POINT
 // ===============================
 
 public class IntegratedChatbotApp {
-    public static void main(String[] args) {
+    /** Journaled messages shown again when the app starts. */
+    static final int REPLAY_TAIL = 200;
+
+    public static void main(String[] args) throws Exception {
+        List<String> flags = Arrays.asList(args);
+        if (flags.contains("--headless")) {
+            System.setProperty("java.awt.headless", "true");
+            int port = flags.indexOf("--port");
+            HeadlessConsole.run(port >= 0 && port + 1 < args.length ? Integer.parseInt(args[port + 1]) : -1);
+            return;
+        }
+
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception ignored) {}
 
         SwingUtilities.invokeLater(() -> {
-            ChatBridge chatBridge = new ChatBridge();
-            MultiStoreSystem storeSystem = new MultiStoreSystem();
+            FoodChatEngine engine = new FoodChatEngine();
+            MultiStoreSystem storeSystem = engine.store();
 
             // Open buyer window on the left
-            BuyerChatWindow buyer = new BuyerChatWindow(chatBridge, storeSystem);
+            BuyerChatWindow buyer = new BuyerChatWindow(engine);
             buyer.setLocation(0, 0);
             buyer.setSize(780, 900);
 
@@ -42,11 +56,14 @@ public class IntegratedChatbotApp {
                 int row = i / cols;
                 int x = startX + col * (sellerW + 6);
                 int y = row * (sellerH + 6);
-                SellerWindow sw = new SellerWindow(s, chatBridge);
+                SellerWindow sw = new SellerWindow(s, engine);
                 sw.setSize(sellerW, sellerH);
                 sw.setLocation(x, y);
                 sw.setVisible(true);
             }
+
+            // Bring back the previous session's chat once every window is listening
+            engine.start(REPLAY_TAIL);
         });
     }
 }
@@ -83,10 +100,26 @@ enum OrderStatus {
 
     public final String displayName;
     public final Color color;
+    private Set<OrderStatus> next = Collections.emptySet();  // COMPLETED and REJECTED are final
+
+    // BUSY is a pause before cooking: it follows PENDING or ACCEPTED and is left by cooking or rejecting.
+    // Every move goes forward along PENDING, ACCEPTED, BUSY, ON_PROCESS, DRIVER_ON_WAY, COMPLETED, so
+    // there are no cycles, nothing goes back, and an order is delayed as BUSY at most once.
+    static {
+        PENDING.next = EnumSet.of(ACCEPTED, BUSY, REJECTED);
+        ACCEPTED.next = EnumSet.of(BUSY, ON_PROCESS, REJECTED);
+        BUSY.next = EnumSet.of(ON_PROCESS, REJECTED);
+        ON_PROCESS.next = EnumSet.of(DRIVER_ON_WAY);
+        DRIVER_ON_WAY.next = EnumSet.of(COMPLETED);
+    }
+
     OrderStatus(String displayName, Color color) {
         this.displayName = displayName;
         this.color = color;
     }
+
+    public boolean canMoveTo(OrderStatus status) { return next.contains(status); }
+    public boolean isFinal() { return next.isEmpty(); }
 }
 
 enum MessageType { TEXT, STORE_RECOMMENDATION, SPECIAL_OFFER, ORDER_UPDATE, SYSTEM }
@@ -95,6 +128,12 @@ enum MessageType { TEXT, STORE_RECOMMENDATION, SPECIAL_OFFER, ORDER_UPDATE, SYST
 // DATA MODELS
 // ===============================
 
+/**
+ * A seller and its menu. Search reads sellers from worker, session and
+ * gateway threads while SellerWindow edits them on the EDT, so the menu and
+ * promotions are copy-on-write lists and the state fields are volatile.
+ * Writers synchronize so the version counters never lose a bump.
+ */
 class Seller {
     private final String id;
     private final String name;
@@ -103,10 +142,12 @@ class Seller {
     private final double distanceKm;
     private final double lat;
     private final double lng;
-    private int currentQueueCount;
-    private boolean isBusy;
-    private List<MenuItem> menu;
-    private List<SpecialOffer> promotions;
+    private volatile int currentQueueCount;
+    private volatile boolean isBusy;
+    private volatile int menuVersion;
+    private volatile int version;  // bumped on any menu, promotion or busy-state change
+    private final List<MenuItem> menu;
+    private final List<SpecialOffer> promotions;
     private SellerWindow window;
 
     public Seller(String id, String name, FoodCategory category, double rating, double distanceKm,
@@ -118,8 +159,8 @@ class Seller {
         this.distanceKm = distanceKm;
         this.lat = lat;
         this.lng = lng;
-        this.menu = new ArrayList<>();
-        this.promotions = new ArrayList<>();
+        this.menu = new CopyOnWriteArrayList<>();
+        this.promotions = new CopyOnWriteArrayList<>();
         this.currentQueueCount = 0;
         this.isBusy = false;
     }
@@ -139,12 +180,29 @@ class Seller {
     public double getDistanceKm() { return distanceKm; }
     public double getLat() { return lat; }
     public double getLng() { return lng; }
-    public List<MenuItem> getMenu() { return menu; }
-    public List<SpecialOffer> getPromotions() { return promotions; }
+    public List<MenuItem> getMenu() { return Collections.unmodifiableList(menu); }
+    public int getMenuVersion() { return menuVersion; }
+    public int getVersion() { return version; }
+    public synchronized void addMenuItem(MenuItem item) { menu.add(item); menuVersion++; version++; }
+    public synchronized boolean removeMenuItem(String itemId) {
+        boolean removed = menu.removeIf(m -> m.getId().equals(itemId));
+        if (removed) { menuVersion++; version++; }
+        return removed;
+    }
+    public List<SpecialOffer> getPromotions() { return Collections.unmodifiableList(promotions); }
+    public synchronized void addPromotion(SpecialOffer offer) { promotions.add(offer); version++; }
+    public synchronized boolean removePromotion(SpecialOffer offer) {
+        boolean removed = promotions.remove(offer);
+        if (removed) version++;
+        return removed;
+    }
     public int getCurrentQueueCount() { return currentQueueCount; }
     public boolean isBusy() { return isBusy; }
     public void setCurrentQueueCount(int count) { currentQueueCount = count; }
-    public void setBusy(boolean busy) { isBusy = busy; }
+    public synchronized void setBusy(boolean busy) {
+        if (isBusy != busy) version++;
+        isBusy = busy;
+    }
     public SellerWindow getWindow() { return window; }
     public void setWindow(SellerWindow w) { window = w; }
     public String getCategoryDisplay() { return category.emoji + " " + category.displayName; }
@@ -156,7 +214,7 @@ class MenuItem {
     private final int price;
     private final double rating;
     private final int cookTimeMinutes;
-    private final Set<String> tags;
+    private final int[] tagIds;  // sorted, distinct ids from TagDictionary
     private final String category;
 
     public MenuItem(String id, String name, int price, double rating, int cookTimeMinutes,
@@ -167,14 +225,21 @@ class MenuItem {
         this.rating = rating;
         this.cookTimeMinutes = cookTimeMinutes;
         this.category = category;
-        this.tags = new HashSet<>(Arrays.asList(tags));
+        this.tagIds = TagDictionary.internAll(Arrays.asList(tags));
     }
 
+    /** 10 points per query tag this item carries; queryIds must be sorted (see TagDictionary). */
+    public int getMatchScore(int[] queryIds) {
+        return TagDictionary.countCommon(tagIds, queryIds) * 10;
+    }
+    public boolean hasAnyTag(int[] queryIds) {
+        return TagDictionary.countCommon(tagIds, queryIds) > 0;
+    }
     public int getMatchScore(Set<String> queryTags) {
-        return (int) queryTags.stream().filter(tags::contains).count() * 10;
+        return getMatchScore(TagDictionary.lookup(queryTags));
     }
     public boolean hasAnyTag(Set<String> queryTags) {
-        return queryTags.stream().anyMatch(tags::contains);
+        return hasAnyTag(TagDictionary.lookup(queryTags));
     }
 
     public String getId() { return id; }
@@ -183,7 +248,83 @@ class MenuItem {
     public double getRating() { return rating; }
     public int getCookTimeMinutes() { return cookTimeMinutes; }
     public String getCategory() { return category; }
-    public Set<String> getTags() { return tags; }
+    public int[] getTagIds() { return tagIds; }  // shared array, do not modify
+    public Set<String> getTags() {
+        Set<String> names = new LinkedHashSet<>();
+        for (int id : tagIds) names.add(TagDictionary.nameOf(id));
+        return Collections.unmodifiableSet(names);
+    }
+}
+
+/**
+ * Process-wide tag dictionary. Interns tag strings to dense ints so menu items
+ * can keep their tags as small sorted int arrays and match by merging arrays
+ * instead of hashing strings.
+ */
+final class TagDictionary {
+    private static final Map<String, Integer> ids = new java.util.concurrent.ConcurrentHashMap<>();
+    private static String[] names = new String[64];
+    private static int size;
+
+    private TagDictionary() {}
+
+    public static synchronized int intern(String tag) {
+        Integer id = ids.get(tag);
+        if (id != null) return id;
+        if (size == names.length) names = Arrays.copyOf(names, size * 2);
+        names[size] = tag;
+        ids.put(tag, size);
+        return size++;
+    }
+
+    /** Returns the id of a known tag, or -1. */
+    public static int idOf(String tag) {
+        Integer id = ids.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    public static synchronized String nameOf(int id) { return names[id]; }
+    public static synchronized int size() { return size; }
+
+    /** Interns every tag and returns the sorted, distinct ids. */
+    public static int[] internAll(Collection<String> tags) {
+        int[] out = new int[tags.size()];
+        int n = 0;
+        for (String t : tags) out[n++] = intern(t);
+        return sortedDistinct(out, n);
+    }
+
+    /** Sorted, distinct ids of the known tags; unknown tags are dropped. */
+    public static int[] lookup(Collection<String> tags) {
+        int[] out = new int[tags.size()];
+        int n = 0;
+        for (String t : tags) {
+            int id = idOf(t);
+            if (id >= 0) out[n++] = id;
+        }
+        return sortedDistinct(out, n);
+    }
+
+    /** Sorts the first n entries in place and returns them without duplicates. */
+    public static int[] sortedDistinct(int[] a, int n) {
+        Arrays.sort(a, 0, n);
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (m == 0 || a[m - 1] != a[i]) a[m++] = a[i];
+        }
+        return m == a.length ? a : Arrays.copyOf(a, m);
+    }
+
+    /** Size of the intersection of two sorted id arrays. */
+    public static int countCommon(int[] a, int[] b) {
+        int i = 0, j = 0, common = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else { common++; i++; j++; }
+        }
+        return common;
+    }
 }
 
 class SellerItem {
@@ -234,8 +375,112 @@ class SpecialOffer {
     public int getSavings() { return originalPrice - offerPrice; }
 }
 
+/**
+ * Hands out order ids: "ORD-1001", "ORD-1002", ... on node 0, and
+ * "ORD-3-1001" style ids on node 3 (set with -Dfoodchat.nodeId), so engines
+ * on different machines never collide.
+ *
+ * Numbers are leased in blocks. Before a block is used, its end is written
+ * to a high-water-mark file under {@code <foodchat.dataDir>/orders}, so
+ * after a restart numbering carries on above anything handed out before.
+ * Ids left unused in a block are skipped. Engines on one machine sharing a
+ * data dir take turns on the file through a file lock and get disjoint
+ * blocks. Inside a block, next() is a single getAndIncrement; only the
+ * thread that runs off the end of a block does any I/O. If the file cannot
+ * be written, next() throws UncheckedIOException rather than hand out ids
+ * that could repeat after a restart.
+ */
+final class OrderIdGenerator {
+    static final long FIRST = 1001;
+    static final int DEFAULT_BLOCK = 1000;
+
+    private static volatile OrderIdGenerator defaultGenerator;
+
+    private final java.nio.file.Path hwmFile;  // null: memory only
+    private final int node;
+    private final int blockSize;
+    private volatile Block block = new Block(FIRST, FIRST);  // empty: the first next() leases
+
+    private static final class Block {
+        final AtomicLong next;
+        final long end;  // exclusive
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    OrderIdGenerator(java.nio.file.Path hwmFile, int node, int blockSize) {
+        if (node < 0) throw new IllegalArgumentException("Node id must not be negative: " + node);
+        if (blockSize < 1) throw new IllegalArgumentException("Block size must be at least 1: " + blockSize);
+        this.hwmFile = hwmFile;
+        this.node = node;
+        this.blockSize = blockSize;
+    }
+
+    /** The generator orders use, persisting under foodchat.dataDir for node foodchat.nodeId (default 0). */
+    static OrderIdGenerator getDefault() {
+        OrderIdGenerator g = defaultGenerator;
+        if (g == null) {
+            synchronized (OrderIdGenerator.class) {
+                if ((g = defaultGenerator) == null) {
+                    int node = Integer.getInteger("foodchat.nodeId", 0);
+                    java.nio.file.Path file = ChatJournal.dataDir().resolve("orders").resolve("ids-node-" + node + ".hwm");
+                    defaultGenerator = g = new OrderIdGenerator(file, node, DEFAULT_BLOCK);
+                }
+            }
+        }
+        return g;
+    }
+
+    public int getNode() { return node; }
+
+    public String next() {
+        long n = nextNumber();
+        return node == 0 ? "ORD-" + n : "ORD-" + node + "-" + n;
+    }
+
+    long nextNumber() {
+        while (true) {
+            Block b = block;
+            long n = b.next.getAndIncrement();
+            if (n < b.end) return n;
+            synchronized (this) {
+                if (block == b) block = lease(b.end);
+            }
+        }
+    }
+
+    // Reserves the next block at or above from and records its end before anyone uses it
+    private Block lease(long from) {
+        if (hwmFile == null) return new Block(from, from + blockSize);
+        try {
+            java.nio.file.Files.createDirectories(hwmFile.getParent());
+            try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(hwmFile,
+                     java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.READ,
+                     java.nio.file.StandardOpenOption.WRITE)) {
+                java.nio.channels.FileLock lock = ch.lock();
+                try {
+                    java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(8);
+                    while (buf.hasRemaining() && ch.read(buf, buf.position()) > 0) {}
+                    long start = Math.max(from, buf.position() == 8 ? buf.flip().getLong() : FIRST);
+                    buf.clear().putLong(start + blockSize).flip();
+                    while (buf.hasRemaining()) ch.write(buf, buf.position());
+                    ch.force(false);
+                    return new Block(start, start + blockSize);
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (java.io.IOException e) {
+            // No block without a durable high-water mark; the next call tries again
+            throw new java.io.UncheckedIOException("Cannot lease order ids from " + hwmFile, e);
+        }
+    }
+}
+
 class Order {
-    private static int counter = 1000;
     private final String orderId;
     private final String customerName;
     private final String phone;
@@ -244,14 +489,14 @@ class Order {
     private final List<CartItem> items;
     private final int subtotal;
     private final Seller seller;
-    private OrderStatus status;
+    private final AtomicLong state;  // transitions so far << 8 | status ordinal
     private final LocalDateTime orderTime;
-    private int estimatedMinutes;
-    private List<OrderStatusListener> listeners = new ArrayList<>();
+    private final AtomicInteger estimatedMinutes;
+    private final ListenerRegistry<OrderStatusListener> listeners = new ListenerRegistry<>();
 
     public Order(String name, String phone, String address, String notes,
                  List<CartItem> items, int subtotal, Seller seller) {
-        this.orderId = "ORD-" + (++counter);
+        this.orderId = OrderIdGenerator.getDefault().next();
         this.customerName = name;
         this.phone = phone;
         this.address = address;
@@ -259,25 +504,63 @@ class Order {
         this.items = new ArrayList<>(items);
         this.subtotal = subtotal;
         this.seller = seller;
-        this.status = OrderStatus.PENDING;
+        this.state = new AtomicLong(OrderStatus.PENDING.ordinal());
         this.orderTime = LocalDateTime.now();
-        this.estimatedMinutes = seller.getEstimatedWaitTime();
+        this.estimatedMinutes = new AtomicInteger(seller.getEstimatedWaitTime());
+    }
+
+    /** An order read back by {@link FoodCodec}, keeping its id, status, version and time. */
+    Order(String orderId, String name, String phone, String address, String notes, List<CartItem> items,
+          int subtotal, Seller seller, OrderStatus status, int version, LocalDateTime orderTime, int estimatedMinutes) {
+        this.orderId = orderId;
+        this.customerName = name;
+        this.phone = phone;
+        this.address = address;
+        this.notes = notes;
+        this.items = new ArrayList<>(items);
+        this.subtotal = subtotal;
+        this.seller = seller;
+        this.state = new AtomicLong(pack(status, version));
+        this.orderTime = orderTime;
+        this.estimatedMinutes = new AtomicInteger(estimatedMinutes);
     }
 
     public void addStatusListener(OrderStatusListener l) { listeners.add(l); }
+    public void removeStatusListener(OrderStatusListener l) { listeners.remove(l); }
+
+    /**
+     * Moves the order to newStatus if {@link OrderStatus#canMoveTo} allows it
+     * from the current status, and returns whether it did. The change is a
+     * compare-and-set, so of several threads racing for the same move exactly
+     * one wins. Only the winner updates history and notifies listeners.
+     * Listeners of two quick moves may run concurrently; they should read
+     * {@link #getStatus()} rather than assume an order of calls.
+     */
+    public boolean updateStatus(OrderStatus newStatus) {
+        long current, next;
+        do {
+            current = state.get();
+            if (!statusOf(current).canMoveTo(newStatus)) return false;
+            next = pack(newStatus, versionOf(current) + 1);
+        } while (!state.compareAndSet(current, next));
+
+        if (newStatus == OrderStatus.BUSY) estimatedMinutes.addAndGet(20);
+        if (newStatus == OrderStatus.COMPLETED) OrderHistoryManager.addCompletedOrder(this);
+        int version = versionOf(next);
+        listeners.forEach(l -> l.onStatusChanged(this, newStatus, version));
+        return true;
+    }
 
-    public void updateStatus(OrderStatus newStatus) {
-        this.status = newStatus;
-        if (newStatus == OrderStatus.BUSY) estimatedMinutes += 20;
-        
-        // Add to history when completed
-        if (newStatus == OrderStatus.COMPLETED) {
-            OrderHistoryManager.addCompletedOrder(this);
-        }
-        
-        listeners.forEach(l -> l.onStatusChanged(this));
+    /** Puts back a state read from the order log. Recovery only: no checks, no listeners. */
+    void restoreStatus(OrderStatus status, int version, int estimatedMinutes) {
+        state.set(pack(status, version));
+        this.estimatedMinutes.set(estimatedMinutes);
     }
 
+    private static long pack(OrderStatus status, int version) { return (long) version << 8 | status.ordinal(); }
+    private static OrderStatus statusOf(long state) { return OrderStatus.values()[(int) (state & 0xFF)]; }
+    private static int versionOf(long state) { return (int) (state >>> 8); }
+
     // Getters
     public String getOrderId() { return orderId; }
     public String getCustomerName() { return customerName; }
@@ -287,14 +570,324 @@ class Order {
     public List<CartItem> getItems() { return items; }
     public int getSubtotal() { return subtotal; }
     public Seller getSeller() { return seller; }
-    public OrderStatus getStatus() { return status; }
-    public int getEstimatedMinutes() { return estimatedMinutes; }
+    public OrderStatus getStatus() { return statusOf(state.get()); }
+    /** How many status changes the order has been through. */
+    public int getVersion() { return versionOf(state.get()); }
+    public int getEstimatedMinutes() { return estimatedMinutes.get(); }
+    public LocalDateTime getOrderTime() { return orderTime; }
     public String getFormattedTime() {
         return orderTime.format(DateTimeFormatter.ofPattern("HH:mm:ss"));
     }
 }
 
-interface OrderStatusListener { void onStatusChanged(Order order); }
+interface OrderStatusListener {
+    void onStatusChanged(Order order);
+
+    /** Called once per real transition with the status and version it produced. */
+    default void onStatusChanged(Order order, OrderStatus status, int version) { onStatusChanged(order); }
+}
+
+/**
+ * Observer list that is safe to add to, remove from and notify from any
+ * thread without locks. Listeners live in an immutable array that updates
+ * replace with compare-and-set. A notification walks the snapshot it started
+ * with, so a listener removed mid-dispatch may still get that one callback.
+ */
+final class ListenerRegistry<T> {
+    private static final Object[] EMPTY = new Object[0];
+    private final AtomicReference<Object[]> snapshot = new AtomicReference<>(EMPTY);
+
+    /** Adds l unless it is already registered; returns whether it was added. */
+    public boolean add(T l) {
+        Objects.requireNonNull(l, "listener");
+        while (true) {
+            Object[] cur = snapshot.get();
+            for (Object x : cur) if (x == l) return false;
+            Object[] next = Arrays.copyOf(cur, cur.length + 1);
+            next[cur.length] = l;
+            if (snapshot.compareAndSet(cur, next)) return true;
+        }
+    }
+
+    public boolean remove(T l) {
+        while (true) {
+            Object[] cur = snapshot.get();
+            int at = -1;
+            for (int i = 0; i < cur.length; i++) if (cur[i] == l) { at = i; break; }
+            if (at < 0) return false;
+            Object[] next = cur.length == 1 ? EMPTY : new Object[cur.length - 1];
+            System.arraycopy(cur, 0, next, 0, at);
+            System.arraycopy(cur, at + 1, next, at, cur.length - at - 1);
+            if (snapshot.compareAndSet(cur, next)) return true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(java.util.function.Consumer<? super T> action) {
+        for (Object l : snapshot.get()) action.accept((T) l);
+    }
+
+    public int size() { return snapshot.get().length; }
+    public boolean isEmpty() { return snapshot.get().length == 0; }
+}
+
+// ===============================
+// BINARY CODEC
+// ===============================
+
+/**
+ * Compact binary form of chat messages and orders, shared by the chat
+ * journal, order snapshots, and anything sent over the wire.
+ *
+ * A unit starts with a version byte, followed by one or more entities.
+ * Numbers are varints. Catalog objects travel as references, never as
+ * copies: a menu item is (seller name, item id), an offer is its title,
+ * an order is its id. A {@link Resolver} turns those references back into
+ * live objects on the way in. Names and ids go through a per-unit string
+ * dictionary, so a repeated string costs one or two bytes. Free text such
+ * as a message body is written inline and is not added to the dictionary.
+ *
+ * Writer and Reader reuse their buffers and dictionaries from one unit to
+ * the next, so a single instance per thread encodes or decodes a stream
+ * without per-record garbage beyond the decoded objects themselves.
+ */
+final class FoodCodec {
+    static final int VERSION = 1;
+
+    /** Maps references back to live objects; returns null for ones that no longer exist. */
+    interface Resolver {
+        SellerItem item(String sellerName, String itemId);
+        SpecialOffer offer(String title);
+        Order order(String orderId);
+        Seller seller(String sellerName);
+    }
+
+    private FoodCodec() {}
+
+    static long toMillis(LocalDateTime t) {
+        return t.atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    static LocalDateTime fromMillis(long millis) {
+        return LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), java.time.ZoneId.systemDefault());
+    }
+
+    // ---- layouts ----
+    // message: [varlong millis][varint type][str sender][str senderType][text body]
+    //          [varint topics][str topic]* [str orderId][str offerTitle][varint items+1][str seller][str itemId]*
+    // order:   [str orderId][str customer][text phone][text address][text notes][str seller][varint status]
+    //          [varint version][varlong millis][varint subtotal][varint estMinutes][varint items][str seller][str itemId][varint qty]*
+    // str:     [varint index<<1 | 1] for a dictionary hit, else [varint length<<1][UTF-8], which joins the dictionary
+    // text:    [varint length][UTF-8]
+
+    static final class Writer {
+        private byte[] buf;
+        private int pos;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+
+        Writer() { this(256); }
+        Writer(int capacity) { buf = new byte[Math.max(16, capacity)]; }
+
+        /** Starts a new unit: empties the buffer and dictionary and writes the version. */
+        Writer begin() {
+            pos = 0;
+            dictionary.clear();
+            buf[pos++] = VERSION;
+            return this;
+        }
+
+        byte[] array() { return buf; }
+        int size() { return pos; }
+        byte[] toByteArray() { return Arrays.copyOf(buf, pos); }
+        void writeTo(java.nio.ByteBuffer out) { out.put(buf, 0, pos); }
+
+        Writer writeMessage(ChatMessage m) {
+            writeVarLong(toMillis(m.timestamp));
+            writeVarLong(m.type.ordinal());
+            writeString(m.senderName);
+            writeString(m.senderType);
+            writeText(m.message);
+            writeVarLong(m.topics.size());
+            for (ChatTopic t : m.topics) writeString(t.toString());
+            writeString(m.order != null ? m.order.getOrderId() : "");
+            writeString(m.specialOffer != null ? m.specialOffer.getTitle() : "");
+            if (m.sellerItems == null) {
+                writeVarLong(0);
+            } else {
+                writeVarLong(m.sellerItems.size() + 1L);  // 0 = no list, 1 = empty list
+                for (SellerItem si : m.sellerItems) {
+                    writeString(si.seller.getName());
+                    writeString(si.item.getId());
+                }
+            }
+            return this;
+        }
+
+        Writer writeOrder(Order o) {
+            writeString(o.getOrderId());
+            writeString(o.getCustomerName());
+            writeText(o.getPhone());
+            writeText(o.getAddress());
+            writeText(o.getNotes());
+            writeString(o.getSeller().getName());
+            int version = o.getVersion();  // read first: a racing change can only make the status newer than the version
+            writeVarLong(o.getStatus().ordinal());
+            writeVarLong(version);
+            writeVarLong(toMillis(o.getOrderTime()));
+            writeVarLong(o.getSubtotal());
+            writeVarLong(o.getEstimatedMinutes());
+            List<CartItem> items = o.getItems();
+            writeVarLong(items.size());
+            for (CartItem ci : items) {
+                writeString(ci.getSellerItem().seller.getName());
+                writeString(ci.getSellerItem().item.getId());
+                writeVarLong(ci.getQuantity());
+            }
+            return this;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeString(String s) {
+            Integer index = dictionary.get(s);
+            if (index != null) {
+                writeVarLong(((long) index << 1) | 1);
+                return;
+            }
+            dictionary.put(s, dictionary.size());
+            writeUtf8(s, true);
+        }
+
+        void writeText(String s) { writeUtf8(s == null ? "" : s, false); }
+
+        // ASCII (every id and most names) is copied char by char; anything else goes through getBytes
+        private void writeUtf8(String s, boolean tagged) {
+            int n = s.length();
+            boolean ascii = true;
+            for (int i = 0; i < n && ascii; i++) ascii = s.charAt(i) < 0x80;
+            if (ascii) {
+                writeVarLong(tagged ? (long) n << 1 : n);
+                ensure(n);
+                for (int i = 0; i < n; i++) buf[pos++] = (byte) s.charAt(i);
+            } else {
+                byte[] utf8 = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                writeVarLong(tagged ? (long) utf8.length << 1 : utf8.length);
+                ensure(utf8.length);
+                System.arraycopy(utf8, 0, buf, pos, utf8.length);
+                pos += utf8.length;
+            }
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+        }
+    }
+
+    static final class Reader {
+        private final Resolver resolver;
+        private final List<String> dictionary = new ArrayList<>();
+        private java.nio.ByteBuffer in;
+        private byte[] scratch = new byte[256];
+
+        Reader(Resolver resolver) { this.resolver = resolver; }
+
+        /** Starts reading the unit at in's position; checks and consumes the version byte. */
+        Reader begin(java.nio.ByteBuffer in) {
+            this.in = in;
+            dictionary.clear();
+            int version = in.get();
+            if (version != VERSION) throw new IllegalArgumentException("Unsupported FoodCodec version " + version);
+            return this;
+        }
+
+        Reader begin(byte[] unit) { return begin(java.nio.ByteBuffer.wrap(unit)); }
+
+        ChatMessage readMessage() {
+            LocalDateTime time = fromMillis(readVarLong());
+            MessageType type = MessageType.values()[(int) readVarLong()];
+            String sender = readString();
+            String senderType = readString();
+            ChatMessage m = new ChatMessage(sender, senderType, readText(), type, time);
+            int topicCount = (int) readVarLong();
+            if (topicCount > 0) {
+                ChatTopic[] topics = new ChatTopic[topicCount];
+                for (int i = 0; i < topicCount; i++) topics[i] = ChatTopic.parse(readString());
+                m.topics = List.of(topics);
+            }
+            String orderId = readString();
+            String offerTitle = readString();
+            if (!orderId.isEmpty()) m.order = resolver.order(orderId);
+            if (!offerTitle.isEmpty()) m.specialOffer = resolver.offer(offerTitle);
+            int itemCount = (int) readVarLong() - 1;
+            if (itemCount >= 0) {
+                List<SellerItem> items = new ArrayList<>(itemCount);
+                for (int i = 0; i < itemCount; i++) {
+                    SellerItem si = resolver.item(readString(), readString());
+                    if (si != null) items.add(si);  // dropped from the menu since
+                }
+                m.sellerItems = items;
+            }
+            return m;
+        }
+
+        /** The order, or null if its seller no longer exists. Items dropped from the menu are left out. */
+        Order readOrder() {
+            String orderId = readString();
+            String customer = readString();
+            String phone = readText();
+            String address = readText();
+            String notes = readText();
+            Seller seller = resolver.seller(readString());
+            OrderStatus status = OrderStatus.values()[(int) readVarLong()];
+            int version = (int) readVarLong();
+            LocalDateTime time = fromMillis(readVarLong());
+            int subtotal = (int) readVarLong();
+            int minutes = (int) readVarLong();
+            int itemCount = (int) readVarLong();
+            List<CartItem> items = new ArrayList<>(itemCount);
+            for (int i = 0; i < itemCount; i++) {
+                SellerItem si = resolver.item(readString(), readString());
+                int qty = (int) readVarLong();
+                if (si != null) items.add(new CartItem(si, qty));
+            }
+            if (seller == null) return null;
+            return new Order(orderId, customer, phone, address, notes, items, subtotal, seller, status, version, time, minutes);
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte x = in.get();
+                v |= (long) (x & 0x7F) << shift;
+                if (x >= 0) return v;
+            }
+        }
+
+        String readString() {
+            long h = readVarLong();
+            if ((h & 1) != 0) return dictionary.get((int) (h >>> 1));
+            String s = readUtf8((int) (h >>> 1));
+            dictionary.add(s);
+            return s;
+        }
+
+        String readText() { return readUtf8((int) readVarLong()); }
+
+        private String readUtf8(int len) {
+            if (len == 0) return "";
+            if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+            in.get(scratch, 0, len);
+            return new String(scratch, 0, len, java.nio.charset.StandardCharsets.UTF_8);
+        }
+    }
+}
 
 // ===============================
 // CHAT BRIDGE
@@ -307,343 +900,4151 @@ class ChatMessage {
     public List<SellerItem> sellerItems;
     public SpecialOffer specialOffer;
     public Order order;
+    public List<ChatTopic> topics = List.of();  // set by ChatBridge when sent
 
     public ChatMessage(String senderName, String senderType, String message, MessageType type) {
+        this(senderName, senderType, message, type, LocalDateTime.now());
+    }
+
+    /** For messages read back from disk, which keep their original time. */
+    public ChatMessage(String senderName, String senderType, String message, MessageType type, LocalDateTime timestamp) {
         this.senderName = senderName;
         this.senderType = senderType;
         this.message = message;
         this.type = type;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
     }
     public String getFormattedTime() {
         return timestamp.format(DateTimeFormatter.ofPattern("HH:mm"));
     }
 }
 
-interface ChatListener { void onMessageReceived(ChatMessage message); }
+/**
+ * A conversation a message belongs to: the buyer's own feed (or one buyer
+ * session's), the system broadcast, one seller's conversation with the
+ * buyer, or one order.
+ */
+final class ChatTopic {
+    public static final ChatTopic BUYER = new ChatTopic("buyer", "");
+    public static final ChatTopic SYSTEM = new ChatTopic("system", "");
+
+    private final String kind, key;
+
+    private ChatTopic(String kind, String key) {
+        this.kind = kind;
+        this.key = key;
+    }
+
+    public static ChatTopic seller(String sellerName) { return new ChatTopic("seller", sellerName); }
+    public static ChatTopic order(String orderId) { return new ChatTopic("order", orderId); }
+    public static ChatTopic session(String sessionId) { return new ChatTopic("session", sessionId); }
+
+    public String getKind() { return kind; }
+    public String getKey() { return key; }
+
+    /** Inverse of {@link #toString()}. */
+    public static ChatTopic parse(String text) {
+        if (text.equals("buyer")) return BUYER;
+        if (text.equals("system")) return SYSTEM;
+        int colon = text.indexOf(':');
+        if (colon < 0) return new ChatTopic(text, "");
+        return new ChatTopic(text.substring(0, colon), text.substring(colon + 1));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ChatTopic)) return false;
+        ChatTopic t = (ChatTopic) o;
+        return kind.equals(t.kind) && key.equals(t.key);
+    }
+
+    @Override
+    public int hashCode() { return kind.hashCode() * 31 + key.hashCode(); }
+
+    @Override
+    public String toString() { return key.isEmpty() ? kind : kind + ":" + key; }
+}
+
+interface ChatListener {
+    void onMessageReceived(ChatMessage message);
 
+    /** Called by the async dispatcher with everything it drained at once, oldest first. */
+    default void onMessagesReceived(List<ChatMessage> batch) {
+        for (ChatMessage m : batch) onMessageReceived(m);
+    }
+}
+
+/**
+ * Fan-out point for every chat message. Each message is tagged with the
+ * topics it belongs to and reaches only the listeners subscribed to one of
+ * them (plus any {@link #addListener} wildcard listeners), looked up in a
+ * prebuilt topic index. Buyer text goes to the buyer feed and to every seller
+ * conversation the buyer has opened.
+ *
+ * By default a send delivers on the caller's thread; after {@link #startAsync} sends go into a
+ * bounded queue and a single dispatcher thread delivers them in batches, so a
+ * slow window never stalls the sender. One queue drained by one thread keeps
+ * messages in send order, which includes each sender's own order.
+ */
 class ChatBridge {
-    private final List<ChatMessage> history = new ArrayList<>();
-    private final List<ChatListener> listeners = new ArrayList<>();
+    /** What a send does when the async queue is full. */
+    enum Backpressure { BLOCK, DROP }
+
+    static final int MAX_BATCH = 64;
+
+    static final int HISTORY_CAPACITY = 1000;
+    static final int INDEX_WINDOW = 50_000;  // search covers the newest 50k to 100k messages
+
+    private final ChatHistory history;
+    private final ChatIndex index = new ChatIndex(INDEX_WINDOW);  // doc id + indexBase = history sequence number
+    private final long indexBase;
+    private volatile ChatJournal journal;
+    private final ListenerRegistry<ChatListener> listeners = new ListenerRegistry<>();  // every topic
+    // Topic index: each topic's subscriber array is replaced whole, so readers never lock
+    private final Map<ChatTopic, ChatListener[]> subscriptions = new ConcurrentHashMap<>();
+    // Buyer conversation (BUYER, or a session topic) -> itself plus the seller topics it has opened
+    private final Map<ChatTopic, ChatTopic[]> routes = new ConcurrentHashMap<>();
     private String buyerName = "Customer";
 
+    // Async mode; queue stays null while dispatching synchronously
+    private volatile BlockingQueue<Envelope> queue;
+    private volatile Backpressure backpressure = Backpressure.BLOCK;
+    private volatile Thread dispatcher;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private static final class Envelope {
+        final ChatMessage message;
+        final long enqueuedAt;
+        Envelope(ChatMessage message, long enqueuedAt) {
+            this.message = message;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private static final Envelope STOP = new Envelope(null, 0);  // queued by close(): deliver what is ahead, then exit
+
+    /** Subscribes to every message regardless of topic. */
     public void addListener(ChatListener l) { listeners.add(l); }
+    public void removeListener(ChatListener l) { listeners.remove(l); }
+
+    public void subscribe(ChatTopic topic, ChatListener l) {
+        subscriptions.compute(topic, (t, current) -> {
+            if (current == null) return new ChatListener[] { l };
+            for (ChatListener existing : current) if (existing == l) return current;
+            ChatListener[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = l;
+            return grown;
+        });
+    }
+
+    public void unsubscribe(ChatTopic topic, ChatListener l) {
+        subscriptions.computeIfPresent(topic, (t, current) -> {
+            ChatListener[] kept = Arrays.stream(current).filter(x -> x != l).toArray(ChatListener[]::new);
+            return kept.length == 0 ? null : kept;
+        });
+    }
+
+    /** From now on the buyer's messages also reach this seller. */
+    public void openConversation(String sellerName) { openConversation(ChatTopic.BUYER, sellerName); }
+    public void closeConversation(String sellerName) { closeConversation(ChatTopic.BUYER, sellerName); }
+    public Set<String> getOpenConversations() { return getOpenConversations(ChatTopic.BUYER); }
+
+    /** From now on messages the buyer of {@code conversation} sends also reach this seller. */
+    public void openConversation(ChatTopic conversation, String sellerName) {
+        ChatTopic seller = ChatTopic.seller(sellerName);
+        routes.compute(conversation, (c, current) -> {
+            if (current == null) return new ChatTopic[] { c, seller };
+            if (Arrays.asList(current).contains(seller)) return current;
+            ChatTopic[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = seller;
+            return grown;
+        });
+    }
+
+    public void closeConversation(ChatTopic conversation, String sellerName) {
+        ChatTopic seller = ChatTopic.seller(sellerName);
+        routes.computeIfPresent(conversation, (c, current) -> {
+            ChatTopic[] kept = Arrays.stream(current).filter(t -> !t.equals(seller)).toArray(ChatTopic[]::new);
+            return kept.length == 1 ? null : kept;
+        });
+    }
+
+    /** Drops every seller conversation opened for a buyer conversation that has ended. */
+    public void forgetConversation(ChatTopic conversation) { routes.remove(conversation); }
+
+    public Set<String> getOpenConversations(ChatTopic conversation) {
+        Set<String> names = new LinkedHashSet<>();
+        ChatTopic[] topics = routes.get(conversation);
+        if (topics != null) for (int i = 1; i < topics.length; i++) names.add(topics[i].getKey());
+        return names;
+    }
+
+    /** Keeps the last HISTORY_CAPACITY messages in memory and spills older ones to a temp file. */
+    public ChatBridge() {
+        this(new ChatHistory(HISTORY_CAPACITY, null));
+    }
+
+    public ChatBridge(ChatHistory history) {
+        this.history = history;
+        this.indexBase = history.size();
+    }
+
     public void setBuyerName(String n) { buyerName = n; }
-    public List<ChatMessage> getHistory() { return new ArrayList<>(history); }
 
-    public void sendFromBuyer(String msg) {
-        dispatch(new ChatMessage(buyerName, "BUYER", msg, MessageType.TEXT));
+    /** Messages still held in memory, oldest first. */
+    public List<ChatMessage> getHistory() { return history.getRecent(history.getCapacity()); }
+    public List<ChatMessage> getRecent(int n) { return history.getRecent(n); }
+    public List<ChatMessage> getSince(LocalDateTime from) { return history.getSince(from); }
+    public ChatHistory getChatHistory() { return history; }
+    public ChatIndex getIndex() { return index; }
+
+    /**
+     * Newest messages first, at most limit, matching a {@link ChatIndex}
+     * query and sent between from and to (either may be null for no bound).
+     * Messages that have been spilled to disk come back without attachments.
+     * Only the newest {@link #INDEX_WINDOW} or so messages are searched.
+     */
+    public List<ChatMessage> search(String query, LocalDateTime from, LocalDateTime to, int limit) {
+        int[] docs = index.search(query, from == null ? Long.MIN_VALUE : FoodCodec.toMillis(from),
+            to == null ? Long.MAX_VALUE : FoodCodec.toMillis(to), limit);
+        long[] seqs = new long[docs.length];
+        for (int i = 0; i < docs.length; i++) seqs[i] = indexBase + docs[i];
+        return history.get(seqs);
+    }
+
+    /**
+     * Restores the last {@code tail} journaled messages into history and the
+     * subscribed windows, then journals every message sent from now on.
+     * Returns how many messages the journal held.
+     */
+    public long attachJournal(ChatJournal j, FoodCodec.Resolver resolver, int tail) {
+        List<ChatMessage> restored = j.readTail(Math.min(tail, history.getCapacity()), resolver);
+        record(restored);
+        fanOut(restored);
+        journal = j;
+        return j.getRecordCount();
+    }
+
+    /** Switches to queued delivery on a background dispatcher thread. */
+    public synchronized void startAsync(int capacity, Backpressure policy) {
+        if (queue != null) throw new IllegalStateException("ChatBridge is already asynchronous");
+        if (capacity < 1) throw new IllegalArgumentException("Queue capacity must be at least 1: " + capacity);
+        backpressure = policy;
+        BlockingQueue<Envelope> q = new ArrayBlockingQueue<>(capacity);
+        Thread t = new Thread(() -> runDispatcher(q), "foodchat-dispatch");
+        t.setDaemon(true);
+        dispatcher = t;
+        queue = q;
+        t.start();
+    }
+
+    public void setBackpressure(Backpressure policy) { backpressure = policy; }
+    public boolean isAsync() { return queue != null; }
+
+    /**
+     * Delivers everything already queued, stops the dispatcher and closes the
+     * journal. Later sends are delivered on the caller's thread and not journaled.
+     */
+    public void close() {
+        BlockingQueue<Envelope> q;
+        Thread t;
+        synchronized (this) {
+            q = queue;
+            t = dispatcher;
+            queue = null;
+            dispatcher = null;
+        }
+        if (q != null && t != Thread.currentThread()) {
+            try {
+                q.put(STOP);
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // Senders that read the queue just before it was cleared
+            List<Envelope> late = new ArrayList<>();
+            q.drainTo(late);
+            late.remove(STOP);
+            List<ChatMessage> messages = new ArrayList<>(late.size());
+            for (Envelope env : late) messages.add(env.message);
+            deliverSafely(messages);
+        }
+        ChatJournal j = journal;
+        journal = null;
+        if (j != null) j.close();
+    }
+
+    // ---- metrics ----
+    public int getQueueDepth() {
+        BlockingQueue<Envelope> q = queue;
+        return q == null ? 0 : q.size();
+    }
+    public long getDroppedCount() { return dropped.get(); }
+    public long getDeliveredCount() { return delivered.get(); }
+    /** Mean time from send to delivery over all async messages, in microseconds. */
+    public double getAverageLatencyMicros() {
+        long n = delivered.get();
+        return n == 0 ? 0 : totalLatencyNanos.get() / 1000.0 / n;
+    }
+    public double getMaxLatencyMicros() { return maxLatencyNanos.get() / 1000.0; }
+
+    // The single-buyer forms talk on the BUYER conversation; the ones taking a
+    // ChatTopic address one buyer session's conversation instead
+
+    public void sendFromBuyer(String msg) { sendFromBuyer(ChatTopic.BUYER, buyerName, msg); }
+    public void sendFromSeller(String sellerName, String msg) { sendFromSeller(ChatTopic.BUYER, sellerName, msg); }
+    public void sendRecommendations(List<SellerItem> items, String msg) { sendRecommendations(ChatTopic.BUYER, items, msg); }
+    public void sendSpecialOffer(SpecialOffer offer) { sendSpecialOffer(ChatTopic.BUYER, offer); }
+    public void sendOrderUpdate(Order order) { sendOrderUpdate(ChatTopic.BUYER, order); }
+    public void sendSystem(String msg) { sendSystem(ChatTopic.SYSTEM, msg); }
+
+    public void sendFromBuyer(ChatTopic conversation, String buyer, String msg) {
+        ChatTopic[] topics = routes.get(conversation);
+        dispatch(new ChatMessage(buyer, "BUYER", msg, MessageType.TEXT),
+            topics != null ? topics : new ChatTopic[] { conversation });
     }
-    public void sendFromSeller(String sellerName, String msg) {
-        dispatch(new ChatMessage(sellerName, "SELLER", msg, MessageType.TEXT));
+    public void sendFromSeller(ChatTopic conversation, String sellerName, String msg) {
+        dispatch(new ChatMessage(sellerName, "SELLER", msg, MessageType.TEXT),
+            conversation, ChatTopic.seller(sellerName));
     }
-    public void sendRecommendations(List<SellerItem> items, String msg) {
+    public void sendRecommendations(ChatTopic conversation, List<SellerItem> items, String msg) {
         ChatMessage cm = new ChatMessage("System", "SELLER", msg, MessageType.STORE_RECOMMENDATION);
         cm.sellerItems = items;
-        dispatch(cm);
+        dispatch(cm, conversation);
     }
-    public void sendSpecialOffer(SpecialOffer offer) {
+    public void sendSpecialOffer(ChatTopic conversation, SpecialOffer offer) {
         ChatMessage cm = new ChatMessage("System", "SELLER", "🎁 Special Offer!", MessageType.SPECIAL_OFFER);
         cm.specialOffer = offer;
-        dispatch(cm);
+        dispatch(cm, conversation);
     }
-    public void sendOrderUpdate(Order order) {
+    public void sendOrderUpdate(ChatTopic conversation, Order order) {
         ChatMessage cm = new ChatMessage("System", "SELLER",
             "Order " + order.getOrderId() + " → " + order.getStatus().displayName, MessageType.ORDER_UPDATE);
         cm.order = order;
-        dispatch(cm);
+        dispatch(cm, conversation, ChatTopic.order(order.getOrderId()));
     }
-    public void sendSystem(String msg) {
-        dispatch(new ChatMessage("System", "SYSTEM", msg, MessageType.SYSTEM));
+    public void sendSystem(ChatTopic topic, String msg) {
+        dispatch(new ChatMessage("System", "SYSTEM", msg, MessageType.SYSTEM), topic);
     }
 
-    private void dispatch(ChatMessage cm) {
-        history.add(cm);
-        for (ChatListener l : listeners) l.onMessageReceived(cm);
+    private void dispatch(ChatMessage cm, ChatTopic... topics) {
+        cm.topics = List.of(topics);
+        BlockingQueue<Envelope> q = queue;
+        // A listener sending from the dispatcher thread must not wait on its own queue
+        if (q == null || Thread.currentThread() == dispatcher) {
+            deliver(List.of(cm));
+            return;
+        }
+        Envelope env = new Envelope(cm, System.nanoTime());
+        if (backpressure == Backpressure.DROP) {
+            if (!q.offer(env)) dropped.incrementAndGet();
+            return;
+        }
+        try {
+            q.put(env);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.incrementAndGet();
+        }
     }
-}
-
-// ===============================
-// SHOPPING CART
-// ===============================
-
-class ShoppingCart {
-    private final List<CartItem> items = new ArrayList<>();
 
-    public void addItem(SellerItem si, int qty) {
-        for (CartItem ci : items) {
-            if (ci.getSellerItem().item.getId().equals(si.item.getId()) &&
-                ci.getSellerItem().seller.getId().equals(si.seller.getId())) {
-                ci.setQuantity(ci.getQuantity() + qty);
+    private void runDispatcher(BlockingQueue<Envelope> q) {
+        List<Envelope> batch = new ArrayList<>(MAX_BATCH);
+        List<ChatMessage> messages = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(q.take());
+            } catch (InterruptedException e) {
                 return;
             }
+            q.drainTo(batch, MAX_BATCH - 1);
+            int stop = batch.indexOf(STOP);
+            if (stop >= 0) batch.subList(stop, batch.size()).clear();
+            for (Envelope env : batch) messages.add(env.message);
+            deliverSafely(messages);
+
+            long now = System.nanoTime();
+            for (Envelope env : batch) {
+                long latency = now - env.enqueuedAt;
+                totalLatencyNanos.addAndGet(latency);
+                maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            }
+            delivered.addAndGet(batch.size());
+            batch.clear();
+            messages.clear();
+            if (stop >= 0) return;
         }
-        items.add(new CartItem(si, qty));
     }
 
-    public void removeItem(String itemId, String sellerId) {
-        items.removeIf(ci ->
-            ci.getSellerItem().item.getId().equals(itemId) &&
-            ci.getSellerItem().seller.getId().equals(sellerId));
+    // The dispatcher must outlive any one bad batch, or BLOCK senders wait forever on a full queue
+    private void deliverSafely(List<ChatMessage> messages) {
+        try {
+            deliver(messages);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
     }
 
-    public void updateQty(String itemId, String sellerId, int qty) {
-        if (qty <= 0) { removeItem(itemId, sellerId); return; }
-        for (CartItem ci : items) {
-            if (ci.getSellerItem().item.getId().equals(itemId) &&
-                ci.getSellerItem().seller.getId().equals(sellerId)) {
-                ci.setQuantity(qty); break;
+    private void deliver(List<ChatMessage> messages) {
+        record(messages);
+        ChatJournal j = journal;
+        if (j != null) {
+            try {
+                j.appendAll(messages);
+            } catch (RuntimeException e) {
+                // Keep chatting without a journal rather than failing every send, as ChatHistory does
+                journal = null;
+                e.printStackTrace();
             }
         }
+        fanOut(messages);
     }
 
-    public List<CartItem> getItems() { return new ArrayList<>(items); }
-    public boolean isEmpty() { return items.isEmpty(); }
-    public int getTotal() { return items.stream().mapToInt(CartItem::getTotal).sum(); }
-    public int getCount() { return items.stream().mapToInt(CartItem::getQuantity).sum(); }
-    public void clear() { items.clear(); }
+    private void record(List<ChatMessage> messages) {
+        synchronized (history) {  // concurrent sync-mode sends must reach both in the same order
+            history.appendAll(messages);
+            for (ChatMessage m : messages) index.add(m);
+        }
+    }
 
-    public Seller getPrimarySeller() {
-        if (items.isEmpty()) return null;
-        Map<String, Long> counts = items.stream()
-            .collect(Collectors.groupingBy(ci -> ci.getSellerItem().seller.getId(), Collectors.counting()));
-        String topId = counts.entrySet().stream()
-            .max(Map.Entry.comparingByValue()).map(Map.Entry::getKey).orElse(null);
-        if (topId == null) return null;
-        return items.stream()
-            .map(ci -> ci.getSellerItem().seller)
-            .filter(s -> s.getId().equals(topId))
-            .findFirst().orElse(null);
+    private void fanOut(List<ChatMessage> messages) {
+        if (messages.isEmpty()) return;
+        listeners.forEach(l -> deliverTo(l, messages));
+
+        // Each subscriber gets its share of the batch, in order, in one call
+        Map<ChatTopic, ChatListener[]> index = subscriptions;
+        Map<ChatListener, List<ChatMessage>> routed = new LinkedHashMap<>();
+        for (ChatMessage m : messages) {
+            for (ChatTopic topic : m.topics) {
+                ChatListener[] subscribers = index.get(topic);
+                if (subscribers == null) continue;
+                for (ChatListener l : subscribers) {
+                    List<ChatMessage> share = routed.computeIfAbsent(l, k -> new ArrayList<>());
+                    // Subscribed to two of this message's topics: deliver it once
+                    if (share.isEmpty() || share.get(share.size() - 1) != m) share.add(m);
+                }
+            }
+        }
+        routed.forEach(this::deliverTo);
+    }
+
+    private void deliverTo(ChatListener l, List<ChatMessage> messages) {
+        try {
+            if (messages.size() == 1) l.onMessageReceived(messages.get(0));
+            else l.onMessagesReceived(messages);
+        } catch (RuntimeException e) {
+            // One broken window must not stop delivery to the others
+            e.printStackTrace();
+        }
     }
 }
 
-// ===============================
-// MULTI-STORE SYSTEM
-// ===============================
+/**
+ * Chat history: a fixed-size ring of the most recent messages, with every
+ * message that falls off the ring appended to a segment file on disk. A
+ * sparse index (file offset and time of every 64th spilled record) lets
+ * reads jump close to where they start, so asking for the last N messages
+ * or everything since a time only touches that window.
+ *
+ * Spilled records keep the text fields, time and topics; attached items,
+ * offers and orders are not written and read back as null. If the disk
+ * fails, spilling stops: the file keeps messages [0, spilled) and those
+ * evicted after that are gone, so reads skip them.
+ */
+class ChatHistory {
+    static final int INDEX_EVERY = 64;
+
+    private final ChatMessage[] ring;
+    private final long[] ringTimes;  // epoch millis, parallel to ring
+    private long total;              // messages ever appended; ring holds [total - ringSize, total)
+    private int ringSize;
+
+    private final java.nio.file.Path spillPath;  // null until first spill when no file was given
+    private java.io.DataOutputStream spillOut;
+    private java.nio.channels.FileChannel spillIn;
+    private boolean spillDirty;
+    private boolean spillFailed;
+    private long spilled;       // records on disk: sequence numbers [0, spilled)
+    private long spillBytes;    // file length
+    private long lastSpilledTime = Long.MIN_VALUE;
+    private long[] indexOffsets = new long[16];
+    private long[] indexTimes = new long[16];
+    private final java.io.ByteArrayOutputStream recordBuf = new java.io.ByteArrayOutputStream(256);
+    private final java.io.DataOutputStream recordOut = new java.io.DataOutputStream(recordBuf);
+
+    /** spillFile may be null to use a temp file, created on the first spill. */
+    public ChatHistory(int capacity, java.nio.file.Path spillFile) {
+        if (capacity < 1) throw new IllegalArgumentException("History capacity must be at least 1: " + capacity);
+        ring = new ChatMessage[capacity];
+        ringTimes = new long[capacity];
+        spillPath = spillFile;
+    }
+
+    public int getCapacity() { return ring.length; }
+    public synchronized long size() { return total; }
+    public synchronized long getSpilledCount() { return spilled; }
+
+    public synchronized void appendAll(List<ChatMessage> messages) {
+        for (ChatMessage m : messages) append(m);
+    }
+
+    public synchronized void append(ChatMessage m) {
+        int slot = (int) (total % ring.length);
+        if (ringSize == ring.length) spill(ring[slot], ringTimes[slot]);
+        else ringSize++;
+        ring[slot] = m;
+        ringTimes[slot] = epochMillis(m.timestamp);
+        total++;
+    }
+
+    /** The last n messages, oldest first. */
+    public synchronized List<ChatMessage> getRecent(int n) {
+        long from = Math.max(0, total - Math.max(0, n));
+        return read(from);
+    }
+
+    /** Every message sent at or after the given time, oldest first. */
+    public synchronized List<ChatMessage> getSince(LocalDateTime from) {
+        long t = epochMillis(from);
+        long first = total - ringSize;
+        if (spilled > 0 && t <= lastSpilledTime) {
+            first = firstSpilledAtOrAfter(t);
+        } else {
+            // Binary search the ring; it is ordered oldest to newest from slot first % capacity
+            long lo = total - ringSize, hi = total;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (ringTimes[(int) (mid % ring.length)] < t) lo = mid + 1; else hi = mid;
+            }
+            first = lo;
+        }
+        return read(first);
+    }
+
+    /** The messages with the given sequence numbers (0 = first ever appended), in the order asked. */
+    public synchronized List<ChatMessage> get(long[] seqs) {
+        long[] sorted = seqs.clone();
+        Arrays.sort(sorted);
+        Map<Long, ChatMessage> found = new HashMap<>();
+        long ringStart = total - ringSize;
+        java.io.DataInputStream in = null;
+        long at = -1;  // sequence number the spill reader is positioned at
+        try {
+            for (long seq : sorted) {
+                if (seq < 0 || seq >= total || found.containsKey(seq)) continue;
+                if (seq >= ringStart) {
+                    found.put(seq, ring[(int) (seq % ring.length)]);
+                    continue;
+                }
+                if (seq >= spilled) continue;  // evicted after spilling failed
+                long blockStart = seq / INDEX_EVERY * INDEX_EVERY;
+                if (in == null || at < blockStart || at > seq) {
+                    in = spillReader(indexOffsets[(int) (seq / INDEX_EVERY)]);
+                    at = blockStart;
+                }
+                for (; at < seq; at++) in.skipNBytes(in.readInt());
+                in.readInt();
+                found.put(seq, decode(in));
+                at++;
+            }
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        List<ChatMessage> out = new ArrayList<>(seqs.length);
+        for (long seq : seqs) {
+            ChatMessage m = found.get(seq);
+            if (m != null) out.add(m);
+        }
+        return out;
+    }
+
+    private List<ChatMessage> read(long from) {
+        List<ChatMessage> out = new ArrayList<>((int) Math.min(total - from, Integer.MAX_VALUE));
+        long ringStart = total - ringSize;
+        if (from < spilled) readSpilled(from, Math.min(ringStart, spilled), out);
+        for (long seq = Math.max(from, ringStart); seq < total; seq++) out.add(ring[(int) (seq % ring.length)]);
+        return out;
+    }
+
+    // ---- disk segment: [int length][long millis][str sender][str senderType][str text][str type][short topics][str topic]* ----
+    // str is [int byte length][UTF-8 bytes]; writeUTF would cap a message at 64 KB
+
+    private void spill(ChatMessage m, long millis) {
+        if (spillFailed) return;
+        try {
+            if (spillOut == null) openSpill();
+            recordBuf.reset();
+            recordOut.writeLong(millis);
+            writeString(recordOut, m.senderName);
+            writeString(recordOut, m.senderType);
+            writeString(recordOut, m.message);
+            writeString(recordOut, m.type.name());
+            recordOut.writeShort(m.topics.size());
+            for (ChatTopic topic : m.topics) writeString(recordOut, topic.toString());
+
+            if (spilled % INDEX_EVERY == 0) {
+                int k = (int) (spilled / INDEX_EVERY);
+                if (k == indexOffsets.length) {
+                    indexOffsets = Arrays.copyOf(indexOffsets, k * 2);
+                    indexTimes = Arrays.copyOf(indexTimes, k * 2);
+                }
+                indexOffsets[k] = spillBytes;
+                indexTimes[k] = millis;
+            }
+            spillOut.writeInt(recordBuf.size());
+            recordBuf.writeTo(spillOut);
+            spillBytes += 4 + recordBuf.size();
+            spilled++;
+            lastSpilledTime = millis;
+            spillDirty = true;
+        } catch (java.io.IOException e) {
+            // Keep chatting with memory-only history rather than failing every send
+            spillFailed = true;
+            spillDirty = false;
+            spilled = recordsOnDisk();
+            e.printStackTrace();
+        }
+    }
+
+    // After a failed write only whole records that reached the file count; whatever was still buffered is lost
+    private long recordsOnDisk() {
+        if (spillIn == null) return 0;
+        try {
+            long size = spillIn.size();
+            int block = (int) ((spilled - 1) / INDEX_EVERY);
+            while (block > 0 && indexOffsets[block] > size) block--;
+            long seq = (long) block * INDEX_EVERY;
+            long at = indexOffsets[block];
+            java.io.DataInputStream in = spillReader(at);
+            while (seq < spilled && at + 4 <= size) {
+                int len = in.readInt();
+                if (at + 4 + len > size) break;
+                in.skipNBytes(len);
+                at += 4 + len;
+                seq++;
+            }
+            return seq;
+        } catch (java.io.IOException e) {
+            return 0;
+        }
+    }
+
+    private void openSpill() throws java.io.IOException {
+        java.nio.file.Path path = spillPath;
+        if (path == null) {
+            path = java.nio.file.Files.createTempFile("foodchat-history", ".seg");
+            path.toFile().deleteOnExit();
+        }
+        spillOut = new java.io.DataOutputStream(new java.io.BufferedOutputStream(
+            java.nio.file.Files.newOutputStream(path, java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.TRUNCATE_EXISTING, java.nio.file.StandardOpenOption.WRITE)));
+        spillIn = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.READ);
+    }
+
+    private long firstSpilledAtOrAfter(long millis) {
+        // Start from the last indexed record older than millis, then scan forward
+        int blocks = (int) ((spilled + INDEX_EVERY - 1) / INDEX_EVERY);
+        int lo = 0, hi = blocks;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (indexTimes[mid] < millis) lo = mid + 1; else hi = mid;
+        }
+        int block = Math.max(0, lo - 1);
+        long seq = (long) block * INDEX_EVERY;
+        try {
+            java.io.DataInputStream in = spillReader(indexOffsets[block]);
+            while (seq < spilled) {
+                int len = in.readInt();
+                if (in.readLong() >= millis) return seq;
+                in.skipNBytes(len - 8);
+                seq++;
+            }
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        return seq;
+    }
+
+    private void readSpilled(long from, long to, List<ChatMessage> out) {
+        int block = (int) (from / INDEX_EVERY);
+        try {
+            java.io.DataInputStream in = spillReader(indexOffsets[block]);
+            for (long seq = (long) block * INDEX_EVERY; seq < to; seq++) {
+                int len = in.readInt();
+                if (seq < from) {
+                    in.skipNBytes(len);
+                    continue;
+                }
+                out.add(decode(in));
+            }
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    // Buffered reader positioned at offset. Not closed: that would close the shared channel.
+    private java.io.DataInputStream spillReader(long offset) throws java.io.IOException {
+        if (spillDirty) {
+            spillOut.flush();
+            spillDirty = false;
+        }
+        spillIn.position(offset);
+        return new java.io.DataInputStream(new java.io.BufferedInputStream(java.nio.channels.Channels.newInputStream(spillIn)));
+    }
+
+    private static ChatMessage decode(java.io.DataInputStream in) throws java.io.IOException {
+        LocalDateTime time = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(in.readLong()), java.time.ZoneId.systemDefault());
+        ChatMessage m = new ChatMessage(readString(in), readString(in), readString(in), MessageType.valueOf(readString(in)), time);
+        int topicCount = in.readShort();
+        ChatTopic[] topics = new ChatTopic[topicCount];
+        for (int i = 0; i < topicCount; i++) topics[i] = ChatTopic.parse(readString(in));
+        m.topics = List.of(topics);
+        return m;
+    }
+
+    private static void writeString(java.io.DataOutputStream out, String s) throws java.io.IOException {
+        byte[] bytes = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(java.io.DataInputStream in) throws java.io.IOException {
+        return new String(in.readNBytes(in.readInt()), java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    private static long epochMillis(LocalDateTime time) {
+        return time.atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
+
+/**
+ * Inverted index over chat: message words with their positions, sender
+ * name words (as {@code from:word}) and message type (as {@code type:name}).
+ * Documents are numbered in the order they are added, which ChatBridge keeps
+ * equal to history order, so a hit is a position in {@link ChatHistory}.
+ *
+ * A query is words, "quoted phrases", from: and type: terms, all of which
+ * must match. Results come newest first, limited to a time range found by
+ * binary search. For that, a message stamped earlier than one added before
+ * it is filed under the earlier one's time.
+ *
+ * Memory is bounded: documents go into a generation of at most
+ * {@code window} documents, and when a third generation starts the oldest
+ * is dropped whole. Search therefore covers the newest window to
+ * 2 * window messages; older ones stay readable in history but are no
+ * longer found.
+ */
+class ChatIndex {
+    private final int window;
+    private Generation current = new Generation(0), previous;
+    private long lastMillis = Long.MIN_VALUE;
+
+    /** Doc ids ascending; for message words, also each doc's positions in the text (ascending). */
+    private static final class Postings {
+        int[] docs = new int[2];
+        int[] posEnd;     // positions of docs[i] are positions[posEnd[i - 1] .. posEnd[i]); null for from:/type:
+        int[] positions;
+        int size, posSize;
+
+        Postings(boolean positional) {
+            if (positional) {
+                posEnd = new int[2];
+                positions = new int[2];
+            }
+        }
+
+        void add(int doc, int pos) {
+            if (positions != null) {
+                if (posSize == positions.length) positions = Arrays.copyOf(positions, posSize * 2);
+                positions[posSize++] = pos;
+            }
+            if (size > 0 && docs[size - 1] == doc) {
+                if (posEnd != null) posEnd[size - 1] = posSize;
+                return;
+            }
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                if (posEnd != null) posEnd = Arrays.copyOf(posEnd, size * 2);
+            }
+            docs[size] = doc;
+            if (posEnd != null) posEnd[size] = posSize;
+            size++;
+        }
+
+        // Index of doc in docs, or -1
+        int find(int doc) {
+            int i = Arrays.binarySearch(docs, 0, size, doc);
+            return i >= 0 ? i : -1;
+        }
+
+        boolean hasPosition(int i, int pos) {
+            int from = i == 0 ? 0 : posEnd[i - 1];
+            return Arrays.binarySearch(positions, from, posEnd[i], pos) >= 0;
+        }
+    }
+
+    /** Terms and times of a run of consecutive documents; doc ids inside are relative to base. */
+    private static final class Generation {
+        final int base;
+        final Map<String, Postings> terms = new HashMap<>();
+        long[] docMillis = new long[1024];  // non-decreasing
+        int docs;
+
+        Generation(int base) { this.base = base; }
+
+        void add(ChatMessage m, long millis) {
+            int doc = docs;
+            if (doc == docMillis.length) docMillis = Arrays.copyOf(docMillis, doc * 2);
+            docMillis[doc] = millis;
+            docs++;
+            List<String> words = tokenize(m.message);
+            for (int pos = 0; pos < words.size(); pos++) postings(words.get(pos), true).add(doc, pos);
+            for (String w : tokenize(m.senderName)) postings("from:" + w, false).add(doc, 0);
+            postings("type:" + m.type.name().toLowerCase(), false).add(doc, 0);
+        }
+
+        // Appends up to limit matching ids (newest first, made absolute) to out; returns the new count
+        int search(List<String[]> clauses, long fromMillis, long toMillis, int[] out, int n, int limit) {
+            int lo = firstAtOrAfter(fromMillis), hi = firstAtOrAfter(toMillis == Long.MAX_VALUE ? toMillis : toMillis + 1);
+            if (lo >= hi) return n;
+
+            // Resolve every term; a term nobody used means no hits
+            Postings[][] lists = new Postings[clauses.size()][];
+            Postings driver = null;
+            for (int c = 0; c < clauses.size(); c++) {
+                String[] clause = clauses.get(c);
+                lists[c] = new Postings[clause.length];
+                for (int t = 0; t < clause.length; t++) {
+                    Postings p = terms.get(clause[t]);
+                    if (p == null) return n;
+                    lists[c][t] = p;
+                    if (driver == null || p.size < driver.size) driver = p;
+                }
+            }
+
+            // Walk the rarest term's documents newest first and check the rest
+            for (int i = lowerBound(driver.docs, driver.size, hi) - 1; i >= 0 && n < limit; i--) {
+                int doc = driver.docs[i];
+                if (doc < lo) break;
+                if (matches(lists, doc)) out[n++] = base + doc;
+            }
+            return n;
+        }
+
+        private int firstAtOrAfter(long millis) {
+            int lo = 0, hi = docs;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (docMillis[mid] < millis) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        private Postings postings(String term, boolean positional) {
+            Postings p = terms.get(term);
+            if (p == null) terms.put(term, p = new Postings(positional));
+            return p;
+        }
+    }
+
+    /** An index that keeps between window and 2 * window of the newest documents searchable. */
+    public ChatIndex(int window) {
+        if (window < 1) throw new IllegalArgumentException("Index window must be at least 1: " + window);
+        this.window = window;
+    }
+
+    /** Documents ever added; the next one gets this id. */
+    public synchronized int size() { return current.base + current.docs; }
+    /** Documents search can still find. */
+    public synchronized int getIndexedCount() { return current.docs + (previous == null ? 0 : previous.docs); }
+    public synchronized int getTermCount() { return current.terms.size() + (previous == null ? 0 : previous.terms.size()); }
+
+    /** Adds m as the next document and returns its id. */
+    public synchronized int add(ChatMessage m) {
+        if (current.docs == window) {
+            previous = current;  // the generation before it is dropped here
+            current = new Generation(previous.base + previous.docs);
+        }
+        lastMillis = Math.max(FoodCodec.toMillis(m.timestamp), lastMillis);
+        current.add(m, lastMillis);
+        return current.base + current.docs - 1;
+    }
+
+    /**
+     * Ids of the newest documents, at most limit, that match every clause of
+     * the query and were sent within [fromMillis, toMillis].
+     */
+    public synchronized int[] search(String query, long fromMillis, long toMillis, int limit) {
+        List<String[]> clauses = parse(query);
+        if (clauses.isEmpty() || limit <= 0) return new int[0];
+        int[] out = new int[Math.min(limit, getIndexedCount())];
+        int n = current.search(clauses, fromMillis, toMillis, out, 0, out.length);
+        if (previous != null) n = previous.search(clauses, fromMillis, toMillis, out, n, out.length);
+        return Arrays.copyOf(out, n);
+    }
+
+    private static boolean matches(Postings[][] lists, int doc) {
+        for (Postings[] clause : lists) {
+            int first = clause[0].find(doc);
+            if (first < 0) return false;
+            if (clause.length == 1) continue;
+            int[] at = new int[clause.length];
+            at[0] = first;
+            for (int t = 1; t < clause.length; t++) {
+                if ((at[t] = clause[t].find(doc)) < 0) return false;
+            }
+            // Phrase: some position p of the first word with word t at p + t
+            Postings head = clause[0];
+            boolean phrase = false;
+            for (int k = first == 0 ? 0 : head.posEnd[first - 1]; k < head.posEnd[first] && !phrase; k++) {
+                int p = head.positions[k];
+                phrase = true;
+                for (int t = 1; t < clause.length && phrase; t++) phrase = clause[t].hasPosition(at[t], p + t);
+            }
+            if (!phrase) return false;
+        }
+        return true;
+    }
+
+    private static int lowerBound(int[] a, int size, int key) {
+        int i = Arrays.binarySearch(a, 0, size, key);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /** Each clause is one term, or a phrase of several words in a row. */
+    static List<String[]> parse(String query) {
+        List<String[]> clauses = new ArrayList<>();
+        int i = 0, n = query.length();
+        while (i < n) {
+            char ch = query.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                i++;
+                continue;
+            }
+            int end;
+            String text;
+            if (ch == '"') {
+                end = query.indexOf('"', i + 1);
+                if (end < 0) end = n;
+                text = query.substring(i + 1, end);
+                end++;
+            } else {
+                end = i;
+                while (end < n && !Character.isWhitespace(query.charAt(end))) end++;
+                text = query.substring(i, end);
+            }
+            i = end;
+            String lower = text.toLowerCase();
+            if (lower.startsWith("from:") || lower.startsWith("type:")) {
+                String field = lower.substring(0, 5);
+                for (String w : tokenize(text.substring(5))) clauses.add(new String[] { field + w });
+                continue;
+            }
+            List<String> words = tokenize(text);
+            if (!words.isEmpty()) clauses.add(words.toArray(new String[0]));  // hyphenated words are phrases too
+        }
+        return clauses;
+    }
+
+    /** Lower-cased runs of letters and digits. */
+    static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null) return out;
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char ch = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(ch) || ch == '_') {
+                word.append(Character.toLowerCase(ch));
+            } else if (word.length() > 0) {
+                out.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return out;
+    }
+}
+
+/**
+ * Durable, append-only log of every chat message, kept in memory-mapped
+ * segment files under {@code <foodchat.dataDir>/chat}. Each record is one
+ * {@link FoodCodec} unit, so attachments are stored as ids and a
+ * {@link FoodCodec.Resolver} turns them back into objects on replay. A
+ * background thread forces dirty pages to disk once a second.
+ *
+ * Segment: [int magic][int version] then records [int length][int crc32][payload].
+ * The length is written last, and a zero length (the file's untouched tail)
+ * ends the segment. Forcing a mapped file does not order its pages, so after
+ * a crash the newest records can have a length but a torn payload. Opening
+ * the journal checks the active segment's records against their CRCs and
+ * cuts it off at the first bad one; appending resumes there. Older segments
+ * were forced whole before the next one was created.
+ */
+class ChatJournal {
+    static final int MAGIC = 0x46434A31;  // "FCJ1"
+    static final int VERSION = 3;         // records are CRC-framed FoodCodec units
+    static final int HEADER_BYTES = 8;
+    static final int RECORD_HEADER_BYTES = 8;  // length, crc32
+    static final int SEGMENT_BYTES = 16 << 20;
+    static final long FORCE_INTERVAL_MS = 1000;
+
+    private final java.nio.file.Path dir;
+    private final List<java.nio.file.Path> segments = new ArrayList<>();
+    private java.nio.channels.FileChannel channel;
+    private java.nio.MappedByteBuffer active;
+    private boolean dirty;
+    private long recordCount;
+    private final FoodCodec.Writer writer = new FoodCodec.Writer(1024);
+    private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    private final java.util.concurrent.ScheduledExecutorService flusher;
+
+    private ChatJournal(java.nio.file.Path dir) throws java.io.IOException {
+        this.dir = dir;
+        java.nio.file.Files.createDirectories(dir);
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+            files.filter(f -> f.getFileName().toString().matches("chat-\\d{6}\\.seg")).sorted().forEach(segments::add);
+        }
+        for (int i = 0; i < segments.size() - 1; i++) {
+            java.nio.MappedByteBuffer b = map(segments.get(i));
+            checkHeader(b, segments.get(i));
+            while (skipRecord(b)) recordCount++;
+        }
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            java.nio.file.Path last = segments.get(segments.size() - 1);
+            channel = java.nio.channels.FileChannel.open(last, java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+            active = channel.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            checkHeader(active, last);
+            while (checkRecord(active, crc)) recordCount++;
+            cutTornTail(last);
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "foodchat-journal-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::force, FORCE_INTERVAL_MS, FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static ChatJournal open(java.nio.file.Path dir) throws java.io.IOException {
+        return new ChatJournal(dir);
+    }
+
+    /** The journal under the foodchat.dataDir system property (default ~/.foodchat). */
+    public static ChatJournal openDefault() throws java.io.IOException {
+        return open(dataDir().resolve("chat"));
+    }
+
+    static java.nio.file.Path dataDir() {
+        return java.nio.file.Paths.get(System.getProperty("foodchat.dataDir",
+            System.getProperty("user.home") + java.io.File.separator + ".foodchat"));
+    }
+
+    public synchronized long getRecordCount() { return recordCount; }
+
+    public synchronized void appendAll(List<ChatMessage> messages) {
+        for (ChatMessage m : messages) append(m);
+    }
+
+    public synchronized void append(ChatMessage m) {
+        if (active == null) throw new IllegalStateException("Chat journal is closed");
+        writer.begin().writeMessage(m);
+        int length = writer.size();
+        try {
+            if (active.remaining() < RECORD_HEADER_BYTES + length) openSegment(segments.size());
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        int at = active.position();
+        active.position(at + RECORD_HEADER_BYTES);
+        writer.writeTo(active);
+        crc.reset();
+        crc.update(writer.array(), 0, length);
+        active.putInt(at + 4, (int) crc.getValue());
+        active.putInt(at, length);
+        dirty = true;
+        recordCount++;
+    }
+
+    /** Writes dirty pages of the active segment to disk. */
+    public synchronized void force() {
+        if (!dirty || active == null) return;
+        active.force();
+        dirty = false;
+    }
+
+    public synchronized void close() {
+        if (active == null) return;
+        force();
+        flusher.shutdown();
+        try {
+            channel.close();
+        } catch (java.io.IOException ignored) {}
+        active = null;
+    }
+
+    /** Decodes the last n records, oldest first. Older records are skipped by length only. */
+    public synchronized List<ChatMessage> readTail(int n, FoodCodec.Resolver resolver) {
+        if (n <= 0 || recordCount == 0) return new ArrayList<>();
+        long skip = Math.max(0, recordCount - n);
+        List<ChatMessage> out = new ArrayList<>((int) Math.min(n, recordCount));
+        forEachRecord(skip, m -> out.add(m), resolver);
+        return out;
+    }
+
+    /** Decodes every record in order. */
+    public synchronized void replay(FoodCodec.Resolver resolver, java.util.function.Consumer<ChatMessage> sink) {
+        forEachRecord(0, sink, resolver);
+    }
+
+    private void forEachRecord(long skip, java.util.function.Consumer<ChatMessage> sink, FoodCodec.Resolver resolver) {
+        FoodCodec.Reader reader = new FoodCodec.Reader(resolver);
+        try {
+            for (int s = 0; s < segments.size(); s++) {
+                java.nio.ByteBuffer b = s == segments.size() - 1
+                    ? active.duplicate().position(HEADER_BYTES)
+                    : map(segments.get(s)).position(HEADER_BYTES);
+                while (b.remaining() >= RECORD_HEADER_BYTES) {
+                    int len = b.getInt(b.position());
+                    if (len <= 0) break;
+                    if (skip > 0) {
+                        b.position(b.position() + RECORD_HEADER_BYTES + len);
+                        skip--;
+                        continue;
+                    }
+                    b.position(b.position() + RECORD_HEADER_BYTES);
+                    int end = b.position() + len;
+                    sink.accept(reader.begin(b).readMessage());
+                    b.position(end);
+                }
+            }
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    // ---- segments ----
+
+    private void openSegment(int index) throws java.io.IOException {
+        if (active != null) {
+            active.force();
+            channel.close();
+        }
+        java.nio.file.Path path = dir.resolve(String.format("chat-%06d.seg", index));
+        channel = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.CREATE_NEW,
+            java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+        active = channel.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        active.putInt(MAGIC).putInt(VERSION);
+        segments.add(path);
+        dirty = true;
+    }
+
+    private static java.nio.MappedByteBuffer map(java.nio.file.Path path) throws java.io.IOException {
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.READ)) {
+            return ch.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    // Consumes the header
+    private static void checkHeader(java.nio.ByteBuffer b, java.nio.file.Path path) throws java.io.IOException {
+        if (b.remaining() < HEADER_BYTES || b.getInt() != MAGIC || b.getInt() != VERSION) {
+            throw new java.io.IOException("Not a chat journal segment: " + path);
+        }
+    }
+
+    // Moves past one complete record; false at the end of the written data
+    private static boolean skipRecord(java.nio.ByteBuffer b) {
+        if (b.remaining() < RECORD_HEADER_BYTES) return false;
+        int len = b.getInt(b.position());
+        if (len <= 0 || len > b.remaining() - RECORD_HEADER_BYTES) return false;
+        b.position(b.position() + RECORD_HEADER_BYTES + len);
+        return true;
+    }
+
+    // Same, but only past a record whose payload matches its CRC
+    private static boolean checkRecord(java.nio.ByteBuffer b, java.util.zip.CRC32 sum) {
+        if (b.remaining() < RECORD_HEADER_BYTES) return false;
+        int at = b.position();
+        int len = b.getInt(at);
+        if (len <= 0 || len > b.remaining() - RECORD_HEADER_BYTES) return false;
+        sum.reset();
+        sum.update(b.slice(at + RECORD_HEADER_BYTES, len));
+        if ((int) sum.getValue() != b.getInt(at + 4)) return false;
+        b.position(at + RECORD_HEADER_BYTES + len);
+        return true;
+    }
+
+    // Zeroes the active segment from the first bad record on, so nothing after it is read back or appended after
+    private void cutTornTail(java.nio.file.Path path) {
+        int from = active.position();
+        if (active.remaining() < 4 || active.getInt(from) == 0) return;  // a clean end
+        for (int i = from; i < active.limit(); i++) active.put(i, (byte) 0);
+        dirty = true;
+        System.err.println("Chat journal: dropped a torn record and everything after it at " + path + ":" + from);
+    }
+}
+
+// ===============================
+// SHOPPING CART
+// ===============================
+
+class ShoppingCart {
+    private final List<CartItem> items = new ArrayList<>();
+
+    public void addItem(SellerItem si, int qty) {
+        for (CartItem ci : items) {
+            if (ci.getSellerItem().item.getId().equals(si.item.getId()) &&
+                ci.getSellerItem().seller.getId().equals(si.seller.getId())) {
+                ci.setQuantity(ci.getQuantity() + qty);
+                return;
+            }
+        }
+        items.add(new CartItem(si, qty));
+    }
+
+    public void removeItem(String itemId, String sellerId) {
+        items.removeIf(ci ->
+            ci.getSellerItem().item.getId().equals(itemId) &&
+            ci.getSellerItem().seller.getId().equals(sellerId));
+    }
+
+    public void updateQty(String itemId, String sellerId, int qty) {
+        if (qty <= 0) { removeItem(itemId, sellerId); return; }
+        for (CartItem ci : items) {
+            if (ci.getSellerItem().item.getId().equals(itemId) &&
+                ci.getSellerItem().seller.getId().equals(sellerId)) {
+                ci.setQuantity(qty); break;
+            }
+        }
+    }
+
+    public List<CartItem> getItems() { return new ArrayList<>(items); }
+    public boolean isEmpty() { return items.isEmpty(); }
+    public int getTotal() { return items.stream().mapToInt(CartItem::getTotal).sum(); }
+    public int getCount() { return items.stream().mapToInt(CartItem::getQuantity).sum(); }
+    public void clear() { items.clear(); }
+
+    public Seller getPrimarySeller() {
+        if (items.isEmpty()) return null;
+        Map<String, Long> counts = items.stream()
+            .collect(Collectors.groupingBy(ci -> ci.getSellerItem().seller.getId(), Collectors.counting()));
+        String topId = counts.entrySet().stream()
+            .max(Map.Entry.comparingByValue()).map(Map.Entry::getKey).orElse(null);
+        if (topId == null) return null;
+        return items.stream()
+            .map(ci -> ci.getSellerItem().seller)
+            .filter(s -> s.getId().equals(topId))
+            .findFirst().orElse(null);
+    }
+}
+
+// ===============================
+// MULTI-STORE SYSTEM
+// ===============================
 
 class MultiStoreSystem {
-    private final List<Seller> sellers = new ArrayList<>();
+    private final List<Seller> sellers = new CopyOnWriteArrayList<>();  // searched from many threads
     private final Map<String, String> synonyms = new HashMap<>();
 
+    // Columnar snapshot of every menu item plus the inverted tag index,
+    // rebuilt whenever a seller's menu changes (see columns()).
+    private volatile CatalogColumns columns;
+    private volatile KeywordAutomaton tagMatcher;  // tags + synonym keys -> tag id
+    private volatile AutocompleteIndex autocomplete;
+    private volatile int resultLimit = 8;
+    private static final int FUZZY_MIN_RESULTS = 3;
+    private volatile int sellerListVersion;
+    private final QueryCache queryCache = new QueryCache(256);
+
     public MultiStoreSystem() {
         initSellers();
         initSynonyms();
+        rebuildCatalog();
     }
 
     private void initSellers() {
         // ---- PADANG ----
         Seller padang = new Seller("S001", "Warung Padang Sederhana", FoodCategory.PADANG, 4.7, 0.3, -6.06042450727696, 107.11927167171862);
-        padang.getMenu().add(new MenuItem("S001-1", "Nasi Rendang", 18000, 4.8, 40, "food",
+        padang.addMenuItem(new MenuItem("S001-1", "Nasi Rendang", 18000, 4.8, 40, "food",
             "spicy", "savory", "beef", "indonesian", "padang", "nasi", "rice"));
-        padang.getMenu().add(new MenuItem("S001-2", "Nasi Ayam Bakar", 17000, 4.6, 35, "food",
+        padang.addMenuItem(new MenuItem("S001-2", "Nasi Ayam Bakar", 17000, 4.6, 35, "food",
             "savory", "chicken", "indonesian", "padang", "nasi", "rice", "grilled"));
-        padang.getMenu().add(new MenuItem("S001-3", "Gulai Ikan", 15000, 4.5, 30, "food",
+        padang.addMenuItem(new MenuItem("S001-3", "Gulai Ikan", 15000, 4.5, 30, "food",
             "spicy", "fish", "indonesian", "padang", "soup"));
-        padang.getMenu().add(new MenuItem("S001-4", "Sayur Nangka", 8000, 4.3, 20, "food",
+        padang.addMenuItem(new MenuItem("S001-4", "Sayur Nangka", 8000, 4.3, 20, "food",
             "savory", "vegetables", "indonesian", "padang", "vegetarian", "cheap"));
 
         // Padang promos
         SellerItem rendang = new SellerItem(padang, padang.getMenu().get(0));
         SellerItem ayam = new SellerItem(padang, padang.getMenu().get(1));
-        padang.getPromotions().add(new SpecialOffer("🔥 Padang Combo",
+        padang.addPromotion(new SpecialOffer("🔥 Padang Combo",
             "Nasi Rendang + Nasi Ayam Bakar", List.of(rendang, ayam), 20));
         sellers.add(padang);
 
         // ---- KOREAN ----
         Seller korean = new Seller("S002", "Korean Street Food", FoodCategory.KOREAN, 4.6, 1.2, -6.281181190579693, 107.1702099366738);
-        korean.getMenu().add(new MenuItem("S002-1", "Tteokbokki", 25000, 4.7, 20, "food",
+        korean.addMenuItem(new MenuItem("S002-1", "Tteokbokki", 25000, 4.7, 20, "food",
             "spicy", "sweet", "korean", "street food", "rice cake"));
-        korean.getMenu().add(new MenuItem("S002-2", "Korean Fried Chicken", 35000, 4.8, 25, "food",
+        korean.addMenuItem(new MenuItem("S002-2", "Korean Fried Chicken", 35000, 4.8, 25, "food",
             "spicy", "sweet", "korean", "chicken", "crispy", "fried"));
-        korean.getMenu().add(new MenuItem("S002-3", "Bibimbap", 28000, 4.6, 20, "food",
+        korean.addMenuItem(new MenuItem("S002-3", "Bibimbap", 28000, 4.6, 20, "food",
             "savory", "korean", "rice", "vegetables", "egg", "healthy"));
-        korean.getMenu().add(new MenuItem("S002-4", "Ramyeon", 22000, 4.5, 15, "food",
+        korean.addMenuItem(new MenuItem("S002-4", "Ramyeon", 22000, 4.5, 15, "food",
             "spicy", "korean", "noodle", "soup", "hot", "mie"));
-        korean.getMenu().add(new MenuItem("S002-5", "Kimchi Fried Rice", 25000, 4.7, 18, "food",
+        korean.addMenuItem(new MenuItem("S002-5", "Kimchi Fried Rice", 25000, 4.7, 18, "food",
             "spicy", "korean", "rice", "kimchi", "savory"));
 
         SellerItem kfc = new SellerItem(korean, korean.getMenu().get(1));
         SellerItem tteok = new SellerItem(korean, korean.getMenu().get(0));
-        korean.getPromotions().add(new SpecialOffer("🍗 Korean Feast",
+        korean.addPromotion(new SpecialOffer("🍗 Korean Feast",
             "Fried Chicken + Tteokbokki", List.of(kfc, tteok), 25));
         sellers.add(korean);
 
-        // ---- FAST FOOD ----
-        Seller fast = new Seller("S003", "Burger & Pasta Station", FoodCategory.FASTFOOD, 4.4, 0.9, -6.282143627317266, 107.17607760794165);
-        fast.getMenu().add(new MenuItem("S003-1", "Beef Burger", 28000, 4.5, 12, "food",
-            "savory", "beef", "burger", "western", "cheese", "fast"));
-        fast.getMenu().add(new MenuItem("S003-2", "Chicken Burger", 25000, 4.4, 10, "food",
-            "savory", "chicken", "burger", "western", "cheese", "fast"));
-        fast.getMenu().add(new MenuItem("S003-3", "Carbonara Pasta", 30000, 4.6, 15, "food",
-            "savory", "pasta", "western", "creamy", "cheese", "italian"));
-        fast.getMenu().add(new MenuItem("S003-4", "French Fries", 15000, 4.3, 8, "food",
-            "salty", "savory", "potato", "western", "crispy", "fast", "cheap"));
-        fast.getMenu().add(new MenuItem("S003-5", "Aglio Olio", 27000, 4.5, 15, "food",
-            "savory", "pasta", "western", "garlic", "italian"));
+        // ---- FAST FOOD ----
+        Seller fast = new Seller("S003", "Burger & Pasta Station", FoodCategory.FASTFOOD, 4.4, 0.9, -6.282143627317266, 107.17607760794165);
+        fast.addMenuItem(new MenuItem("S003-1", "Beef Burger", 28000, 4.5, 12, "food",
+            "savory", "beef", "burger", "western", "cheese", "fast"));
+        fast.addMenuItem(new MenuItem("S003-2", "Chicken Burger", 25000, 4.4, 10, "food",
+            "savory", "chicken", "burger", "western", "cheese", "fast"));
+        fast.addMenuItem(new MenuItem("S003-3", "Carbonara Pasta", 30000, 4.6, 15, "food",
+            "savory", "pasta", "western", "creamy", "cheese", "italian"));
+        fast.addMenuItem(new MenuItem("S003-4", "French Fries", 15000, 4.3, 8, "food",
+            "salty", "savory", "potato", "western", "crispy", "fast", "cheap"));
+        fast.addMenuItem(new MenuItem("S003-5", "Aglio Olio", 27000, 4.5, 15, "food",
+            "savory", "pasta", "western", "garlic", "italian"));
+
+        SellerItem burger = new SellerItem(fast, fast.getMenu().get(0));
+        SellerItem fries = new SellerItem(fast, fast.getMenu().get(3));
+        fast.addPromotion(new SpecialOffer("🍔 Combo Deal",
+            "Beef Burger + French Fries", List.of(burger, fries), 15));
+        sellers.add(fast);
+
+        // ---- HEALTHY ----
+        Seller healthy = new Seller("S004", "Green Bowl & Salad", FoodCategory.HEALTHY, 4.8, 1.5, -6.294563719538023, 107.1664932375457);
+        healthy.addMenuItem(new MenuItem("S004-1", "Quinoa Buddha Bowl", 35000, 4.9, 15, "food",
+            "healthy", "vegetarian", "quinoa", "vegetables", "fresh", "organic"));
+        healthy.addMenuItem(new MenuItem("S004-2", "Avocado Toast", 28000, 4.7, 8, "food",
+            "healthy", "vegetarian", "bread", "avocado", "fresh", "breakfast"));
+        healthy.addMenuItem(new MenuItem("S004-3", "Greek Salad", 25000, 4.6, 10, "food",
+            "healthy", "vegetarian", "salad", "fresh", "vegetables", "cheese"));
+        healthy.addMenuItem(new MenuItem("S004-4", "Smoothie Bowl", 32000, 4.8, 10, "food",
+            "healthy", "sweet", "fruit", "fresh", "cold", "vegetarian"));
+
+        sellers.add(healthy);
+
+        // ---- WARTEG ----
+        Seller warteg = new Seller("S005", "Warteg Bahagia", FoodCategory.WARTEG, 4.3, 0.2, -6.281666946346757, 107.16368150905166);
+        warteg.addMenuItem(new MenuItem("S005-1", "Nasi Goreng", 15000, 4.5, 20, "food",
+            "savory", "fried", "rice", "indonesian", "nasi", "cheap", "egg"));
+        warteg.addMenuItem(new MenuItem("S005-2", "Nasi Goreng Seafood", 18000, 4.6, 25, "food",
+            "savory", "seafood", "fried", "rice", "indonesian", "nasi"));
+        warteg.addMenuItem(new MenuItem("S005-3", "Mie Goreng", 13000, 4.4, 18, "food",
+            "savory", "fried", "noodle", "indonesian", "mie", "cheap"));
+        warteg.addMenuItem(new MenuItem("S005-4", "Soto Ayam", 15000, 4.5, 20, "food",
+            "savory", "chicken", "soup", "indonesian", "hot"));
+        warteg.addMenuItem(new MenuItem("S005-5", "Tempe Orek", 8000, 4.2, 10, "food",
+            "savory", "vegetarian", "indonesian", "cheap", "tempeh"));
+
+        SellerItem ng = new SellerItem(warteg, warteg.getMenu().get(0));
+        SellerItem soto = new SellerItem(warteg, warteg.getMenu().get(3));
+        warteg.addPromotion(new SpecialOffer("🍚 Hemat Combo",
+            "Nasi Goreng + Soto Ayam", List.of(ng, soto), 10));
+        sellers.add(warteg);
+
+        // ---- DESSERT ----
+        Seller dessert = new Seller("S006", "Sweet Dessert House", FoodCategory.DESSERT, 4.9, 1.5, -6.297940068328937, 107.16611183569414);
+        dessert.addMenuItem(new MenuItem("S006-1", "Chocolate Lava Cake", 35000, 4.9, 20, "dessert",
+            "sweet", "chocolate", "cake", "warm", "rich"));
+        dessert.addMenuItem(new MenuItem("S006-2", "Tiramisu", 30000, 4.8, 15, "dessert",
+            "sweet", "coffee", "cake", "italian", "creamy", "cold"));
+        dessert.addMenuItem(new MenuItem("S006-3", "Strawberry Cheesecake", 32000, 4.9, 15, "dessert",
+            "sweet", "fruit", "strawberry", "creamy", "cold"));
+        dessert.addMenuItem(new MenuItem("S006-4", "Ice Cream Sundae", 25000, 4.7, 5, "dessert",
+            "sweet", "cold", "ice cream", "chocolate", "vanilla", "fast"));
+
+        sellers.add(dessert);
+
+        // ---- DRINKS ----
+        Seller drinks = new Seller("S007", "Warung Es Teh Indonesia", FoodCategory.DRINKS, 4.7, 0.5, -6.297843680583663, 107.16217405179022);
+        drinks.addMenuItem(new MenuItem("S007-1", "Es Teh Manis", 5000, 4.7, 5, "drink",
+            "sweet", "ice", "cold", "tea", "indonesian", "cheap", "refreshing"));
+        drinks.addMenuItem(new MenuItem("S007-2", "Es Jeruk", 8000, 4.6, 5, "drink",
+            "sweet", "sour", "ice", "cold", "citrus", "refreshing", "cheap"));
+        drinks.addMenuItem(new MenuItem("S007-3", "Es Kelapa Muda", 12000, 4.8, 5, "drink",
+            "sweet", "ice", "cold", "coconut", "refreshing", "indonesian"));
+        drinks.addMenuItem(new MenuItem("S007-4", "Thai Tea", 12000, 4.7, 5, "drink",
+            "sweet", "ice", "cold", "tea", "milk", "creamy"));
+        drinks.addMenuItem(new MenuItem("S007-5", "Es Kepal Milo", 15000, 4.8, 8, "drink",
+            "sweet", "ice", "cold", "chocolate", "milo", "creamy"));
+
+        SellerItem teh = new SellerItem(drinks, drinks.getMenu().get(0));
+        SellerItem kelapa = new SellerItem(drinks, drinks.getMenu().get(2));
+        drinks.addPromotion(new SpecialOffer("🥤 Refreshing Duo",
+            "Es Teh Manis + Es Kelapa Muda", List.of(teh, kelapa), 15));
+        sellers.add(drinks);
+    }
+
+    private void initSynonyms() {
+        synonyms.put("manis", "sweet"); synonyms.put("pedas", "spicy");
+        synonyms.put("asin", "salty"); synonyms.put("gurih", "savory");
+        synonyms.put("asam", "sour"); synonyms.put("es", "cold");
+        synonyms.put("dingin", "cold"); synonyms.put("panas", "hot");
+        synonyms.put("makanan", "food"); synonyms.put("minuman", "drink");
+        synonyms.put("nasi", "rice"); synonyms.put("mie", "noodle");
+        synonyms.put("ayam", "chicken"); synonyms.put("sapi", "beef");
+        synonyms.put("ikan", "fish"); synonyms.put("sayur", "vegetables");
+        synonyms.put("buah", "fruit"); synonyms.put("korea", "korean");
+        synonyms.put("indonesia", "indonesian"); synonyms.put("barat", "western");
+        synonyms.put("murah", "cheap"); synonyms.put("sehat", "healthy");
+        synonyms.put("cepat", "fast"); synonyms.put("goreng", "fried");
+        synonyms.put("bakar", "grilled"); synonyms.put("sup", "soup");
+    }
+
+    private synchronized CatalogColumns rebuildCatalog() {
+        CatalogColumns c = CatalogColumns.build(sellers, menuSignature());
+        tagMatcher = buildTagMatcher();
+        autocomplete = buildAutocomplete(c);
+        columns = c;
+        return c;
+    }
+
+    // Dish names weighted by rating, sellers by rating, categories above both,
+    // tags by how many items carry them.
+    private AutocompleteIndex buildAutocomplete(CatalogColumns c) {
+        AutocompleteIndex.Builder b = new AutocompleteIndex.Builder();
+        for (FoodCategory cat : FoodCategory.values()) b.add(cat.displayName, 1000);
+        for (Seller s : c.sellers) b.add(s.getName(), (int) (s.getRating() * 100));
+        for (int i = 0; i < c.size; i++) b.add(c.items[i].getName(), (int) (c.ratings[i] * 100));
+        for (int id = 0; id < c.tagIndex.length; id++) {
+            if (c.tagIndex[id].length > 0) b.add(TagDictionary.nameOf(id), c.tagIndex[id].length);
+        }
+        return b.build();
+    }
+
+    // Every known tag maps to itself; synonym keys map to their target and win
+    // over a tag of the same spelling ("nasi" -> rice), as the old word lookup did.
+    private KeywordAutomaton buildTagMatcher() {
+        KeywordAutomaton.Builder b = new KeywordAutomaton.Builder();
+        for (int id = 0, n = TagDictionary.size(); id < n; id++) {
+            b.add(new String(KeywordAutomaton.normalizeWords(TagDictionary.nameOf(id))), id);
+        }
+        for (Map.Entry<String, String> e : synonyms.entrySet()) {
+            b.add(new String(KeywordAutomaton.normalizeWords(e.getKey())), TagDictionary.intern(e.getValue()));
+        }
+        return b.build();
+    }
+
+    private int menuSignature() {
+        int sig = 0;
+        for (Seller s : sellers) sig += s.getMenuVersion();
+        return sig;
+    }
+
+    // Current snapshot; rebuilt first if any seller's menu changed since the last build
+    private CatalogColumns columns() {
+        CatalogColumns c = columns;
+        if (c.menuSignature != menuSignature()) c = rebuildCatalog();
+        return c;
+    }
+
+    /** Adds a seller after startup and re-indexes the catalog. */
+    public synchronized void addSeller(Seller seller) {
+        sellers.add(seller);
+        sellerListVersion++;
+        rebuildCatalog();
+    }
+
+    /** Changes whenever a seller is added or any seller's menu, promotions or busy state change. */
+    public int getCatalogVersion() {
+        int v = sellerListVersion;
+        for (Seller s : sellers) v += s.getVersion();
+        return v;
+    }
+
+    public List<SellerItem> search(String query, Integer maxPrice, Boolean byRating, Boolean bySpeed) {
+        return search(query, null, maxPrice, byRating, bySpeed);
+    }
+
+    /** Search limited to minPrice..maxPrice inclusive; either bound may be null. */
+    public List<SellerItem> search(String query, Integer minPrice, Integer maxPrice, Boolean byRating, Boolean bySpeed) {
+        columns();  // make sure the tag matcher knows about any new menu tags
+        // Price words are never tags; a price-only query ("between 15k and 25k") is left blank and walks the price index
+        ParsedQuery pq = parseQuery(PriceRange.strip(query.toLowerCase()));
+        boolean rating = byRating != null && byRating;
+        boolean speed = !rating && bySpeed != null && bySpeed;
+        int priceFloor = minPrice != null ? minPrice : Integer.MIN_VALUE;
+        int priceCap = maxPrice != null ? maxPrice : Integer.MAX_VALUE;
+
+        QueryCache.Key key = new QueryCache.Key(pq.blank, pq.tagIds, pq.freeWords, priceFloor, priceCap, rating, speed);
+        int version = getCatalogVersion();
+        List<SellerItem> cached = queryCache.get(key, version);
+        if (cached != null) return new ArrayList<>(cached);
+
+        List<SellerItem> results = rank(pq, priceFloor, priceCap, rating, speed);
+        queryCache.put(key, version, results);
+        return results;
+    }
+
+    private List<SellerItem> rank(ParsedQuery pq, int priceFloor, int priceCap, boolean rating, boolean speed) {
+        int[] queryIds = pq.tagIds;
+        CatalogColumns c = columns();
+        double[] ratings = c.ratings;
+        int[] cookTimes = c.cookTimes;
+        int[] prices = c.prices;
+        int[][] itemTags = c.tagIds;
+
+        // Keep only the best resultLimit candidates while scanning instead of sorting them all
+        TopKSelector top = new TopKSelector(resultLimit);
+        if (pq.blank) {
+            // Walk just the slice of the price index inside the range
+            int[] byPrice = c.byPrice;
+            for (int p = c.firstPriceAtLeast(priceFloor), end = c.firstPriceAbove(priceCap); p < end; p++) {
+                int i = byPrice[p];
+                top.offer(i, rating ? ratings[i] : speed ? -cookTimes[i] : 0);
+            }
+        } else {
+            BitSet hits = c.matchAny(queryIds);
+            // Few exact hits: also take items whose name words or tags are within
+            // a small edit distance of the leftover words ("rendag", "bibimbab")
+            if (pq.freeWords.length > 0 && hits.cardinality() < FUZZY_MIN_RESULTS) {
+                for (String word : pq.freeWords) c.fuzzy.collect(word, hits);
+            }
+            // Price-filter the hits themselves, O(hits); a wide range's price slice would cost O(catalog)
+            for (int i = hits.nextSetBit(0); i >= 0; i = hits.nextSetBit(i + 1)) {
+                if (prices[i] < priceFloor || prices[i] > priceCap) continue;
+                double key = rating ? ratings[i]
+                           : speed ? -cookTimes[i]
+                           : TagDictionary.countCommon(itemTags[i], queryIds) * 10;
+                top.offer(i, key);
+            }
+        }
+
+        List<SellerItem> results = new ArrayList<>();
+        for (int ordinal : top.toSortedArray()) results.add(c.sellerItem(ordinal));
+        return results;
+    }
+
+    public int getResultLimit() { return resultLimit; }
+    public void setResultLimit(int limit) {
+        if (limit < 1) throw new IllegalArgumentException("Result limit must be at least 1: " + limit);
+        resultLimit = limit;
+        queryCache.clear();
+    }
+    public long getCacheHits() { return queryCache.getHits(); }
+    public long getCacheMisses() { return queryCache.getMisses(); }
+
+    /**
+     * Tag ids found in a query, plus the words no tag covered (candidates for
+     * typo correction). Blank means the query had no words at all.
+     */
+    private static final class ParsedQuery {
+        static final ParsedQuery BLANK = new ParsedQuery(true, new int[0], new String[0]);
+
+        final boolean blank;
+        final int[] tagIds;        // sorted, distinct
+        final String[] freeWords;  // sorted, distinct, only words FuzzyIndex can correct
+        ParsedQuery(boolean blank, int[] tagIds, String[] freeWords) {
+            this.blank = blank;
+            this.tagIds = tagIds;
+            this.freeWords = freeWords;
+        }
+    }
+
+    // One pass of the tag automaton over the normalized query. Finds single- and
+    // multi-word tags ("street food", "ice cream") and Indonesian synonyms together.
+    private ParsedQuery parseQuery(String query) {
+        char[] text = KeywordAutomaton.normalizeWords(query);
+        if (text.length == 0) return ParsedQuery.BLANK;
+        int[][] found = { new int[8] };
+        int[] count = { 0 };
+        boolean[] covered = new boolean[text.length];
+        tagMatcher.scan(text, text.length, true, (tagId, start, end) -> {
+            if (count[0] == found[0].length) found[0] = Arrays.copyOf(found[0], count[0] * 2);
+            found[0][count[0]++] = tagId;
+            Arrays.fill(covered, start, end, true);
+        });
+
+        // Tag matches are whole-word, so a word is either fully covered or not at all
+        TreeSet<String> free = new TreeSet<>();
+        for (int i = 0; i < text.length; ) {
+            int j = i;
+            while (j < text.length && text[j] != ' ') j++;
+            if (!covered[i] && FuzzyIndex.isCorrectable(text, i, j)) free.add(new String(text, i, j - i));
+            i = j + 1;
+        }
+        return new ParsedQuery(false, TagDictionary.sortedDistinct(found[0], count[0]),
+            free.toArray(new String[0]));
+    }
+
+    /** Completions for what the buyer has typed so far, best first. */
+    public List<String> suggest(String prefix, int limit) {
+        columns();
+        return autocomplete.complete(prefix, limit);
+    }
+
+    /** Completions for the words at the caret of a chat line; see {@link AutocompleteIndex#completeAt}. */
+    public AutocompleteIndex.Completion suggestAt(String text, int caret, int limit) {
+        columns();
+        return autocomplete.completeAt(text, caret, limit);
+    }
+
+    public List<Seller> getSellers() { return new ArrayList<>(sellers); }
+    public List<Seller> getSellersByCategory(FoodCategory cat) {
+        return sellers.stream().filter(s -> s.getCategory() == cat).collect(Collectors.toList());
+    }
+    public Seller getSellerById(String id) {
+        return sellers.stream().filter(s -> s.getId().equals(id)).findFirst().orElse(null);
+    }
+    public Seller findSeller(String name) {
+        for (Seller s : sellers) if (s.getName().equalsIgnoreCase(name)) return s;
+        return null;
+    }
+    public List<SpecialOffer> getAllOffers() {
+        return sellers.stream().flatMap(s -> s.getPromotions().stream()).collect(Collectors.toList());
+    }
+
+    public SellerItem findItem(String sellerName, String itemId) {
+        for (Seller s : sellers) {
+            if (!s.getName().equals(sellerName)) continue;
+            for (MenuItem m : s.getMenu()) if (m.getId().equals(itemId)) return new SellerItem(s, m);
+        }
+        return null;
+    }
+
+    public SpecialOffer findOffer(String title) {
+        for (Seller s : sellers) {
+            for (SpecialOffer o : s.getPromotions()) if (o.getTitle().equals(title)) return o;
+        }
+        return null;
+    }
+
+    /** Turns the references stored by {@link FoodCodec} back into live catalog objects. */
+    public FoodCodec.Resolver codecResolver() {
+        return new FoodCodec.Resolver() {
+            public SellerItem item(String sellerName, String itemId) { return findItem(sellerName, itemId); }
+            public SpecialOffer offer(String title) { return findOffer(title); }
+            public Order order(String orderId) { return OrderHistoryManager.findOrder(orderId); }
+            public Seller seller(String sellerName) { return findSeller(sellerName); }
+        };
+    }
+}
+
+/**
+ * Struct-of-arrays view of the whole catalog. Item ordinals follow seller
+ * order, then menu order; price, rating and cook time live in primitive
+ * columns so search filters and ranks without touching MenuItem objects.
+ * Immutable once built; MultiStoreSystem swaps in a new one on menu changes.
+ */
+class CatalogColumns {
+    final int menuSignature;
+    final int size;
+    final Seller[] sellers;
+    final int[] sellerOrdinals;
+    final MenuItem[] items;
+    final int[] prices;
+    final double[] ratings;
+    final int[] cookTimes;
+    final int[][] tagIds;
+    final int[][] tagIndex;  // TagDictionary id -> ascending item ordinals
+    final int[] byPrice;       // item ordinals, cheapest first
+    final int[] sortedPrices;  // sortedPrices[p] == prices[byPrice[p]]
+    final FuzzyIndex fuzzy;
+
+    private CatalogColumns(List<Seller> sellerList, int menuSignature) {
+        this.menuSignature = menuSignature;
+        this.sellers = sellerList.toArray(new Seller[0]);
+        List<List<MenuItem>> menus = new ArrayList<>(sellers.length);  // read once: menus may change while we build
+        int n = 0;
+        for (Seller s : sellers) {
+            menus.add(List.copyOf(s.getMenu()));
+            n += menus.get(menus.size() - 1).size();
+        }
+        size = n;
+        sellerOrdinals = new int[n];
+        items = new MenuItem[n];
+        prices = new int[n];
+        ratings = new double[n];
+        cookTimes = new int[n];
+        tagIds = new int[n][];
+
+        int ordinal = 0;
+        for (int so = 0; so < sellers.length; so++) {
+            for (MenuItem m : menus.get(so)) {
+                sellerOrdinals[ordinal] = so;
+                items[ordinal] = m;
+                prices[ordinal] = m.getPrice();
+                ratings[ordinal] = m.getRating();
+                cookTimes[ordinal] = m.getCookTimeMinutes();
+                tagIds[ordinal] = m.getTagIds();
+                ordinal++;
+            }
+        }
+
+        // Count postings per tag first so every list is allocated exactly once
+        int[] counts = new int[TagDictionary.size()];
+        for (int[] ids : tagIds) {
+            for (int id : ids) counts[id]++;
+        }
+        tagIndex = new int[counts.length][];
+        for (int id = 0; id < counts.length; id++) tagIndex[id] = new int[counts[id]];
+        int[] fill = new int[counts.length];
+        for (int o = 0; o < n; o++) {
+            for (int id : tagIds[o]) tagIndex[id][fill[id]++] = o;
+        }
+
+        // Sort (price, ordinal) pairs packed into longs; prices are never negative
+        long[] packed = new long[n];
+        for (int o = 0; o < n; o++) packed[o] = (long) prices[o] << 32 | o;
+        Arrays.sort(packed);
+        byPrice = new int[n];
+        sortedPrices = new int[n];
+        for (int p = 0; p < n; p++) {
+            byPrice[p] = (int) packed[p];
+            sortedPrices[p] = (int) (packed[p] >>> 32);
+        }
+        fuzzy = new FuzzyIndex(items, tagIndex);
+    }
+
+    public static CatalogColumns build(List<Seller> sellers, int menuSignature) {
+        return new CatalogColumns(sellers, menuSignature);
+    }
+
+    /** Union of the posting lists for the given tag ids. */
+    public BitSet matchAny(int[] queryIds) {
+        BitSet hits = new BitSet(size);
+        for (int id : queryIds) {
+            if (id >= tagIndex.length) continue;  // interned after this snapshot was built
+            for (int ordinal : tagIndex[id]) hits.set(ordinal);
+        }
+        return hits;
+    }
+
+    /** Position in byPrice of the first item costing at least price. */
+    public int firstPriceAtLeast(int price) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sortedPrices[mid] < price) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Position in byPrice of the first item costing more than price. */
+    public int firstPriceAbove(int price) {
+        return price == Integer.MAX_VALUE ? size : firstPriceAtLeast(price + 1);
+    }
+
+    public SellerItem sellerItem(int ordinal) {
+        return new SellerItem(sellers[sellerOrdinals[ordinal]], items[ordinal]);
+    }
+}
+
+/**
+ * Price bounds typed into a chat message: "under 20k", "budget 15000",
+ * "between 15k and 25k", "rp 15-25", "above 30k". An amount is in thousands
+ * when it carries k, rb or ribu, or is too small to be rupiah. A bare
+ * "2-3" is a quantity, not a price; a hyphen range needs rp or a suffix.
+ */
+final class PriceRange {
+    // Two groups: the digits, then the thousands suffix if any
+    private static final String AMOUNT = "(?:rp\\.?\\s*)?(\\d+)(\\s*(?:k|rb|ribu)\\b)?";
+    private static final java.util.regex.Pattern BETWEEN = java.util.regex.Pattern.compile(
+        "(?:between|antara)\\s*" + AMOUNT + "\\s*(?:and|dan|to|sampai|-)\\s*" + AMOUNT);
+    private static final java.util.regex.Pattern HYPHEN = java.util.regex.Pattern.compile(
+        "(rp\\.?\\s*)?(\\d+)(\\s*(?:k|rb|ribu)\\b)?\\s*-\\s*(rp\\.?\\s*)?(\\d+)(\\s*(?:k|rb|ribu)\\b)?");
+    private static final java.util.regex.Pattern UPPER = java.util.regex.Pattern.compile(
+        "(?:under|<|max|dibawah|budget)\\s*" + AMOUNT);
+    private static final java.util.regex.Pattern LOWER = java.util.regex.Pattern.compile(
+        "(?:above|over|>|min|diatas)\\s*" + AMOUNT);
+
+    public final Integer min;
+    public final Integer max;
+
+    private PriceRange(Integer min, Integer max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    /** Price bounds found in the lowercased message; both null when there are none. */
+    public static PriceRange parse(String lower) {
+        java.util.regex.Matcher m = BETWEEN.matcher(lower);
+        if (m.find()) return between(amount(m.group(1), m.group(2)), amount(m.group(3), m.group(4)));
+        m = HYPHEN.matcher(lower);
+        while (m.find()) {
+            if (isPriceRange(m)) return between(amount(m.group(2), m.group(3)), amount(m.group(5), m.group(6)));
+        }
+        m = UPPER.matcher(lower);
+        Integer max = m.find() ? amount(m.group(1), m.group(2)) : null;
+        m = LOWER.matcher(lower);
+        Integer min = m.find() ? amount(m.group(1), m.group(2)) : null;
+        return new PriceRange(min, max);
+    }
+
+    /** The lowercased message with every price phrase {@link #parse} reads blanked out, leaving the words to search for. */
+    public static String strip(String lower) {
+        String out = BETWEEN.matcher(lower).replaceAll(" ");
+        out = HYPHEN.matcher(out).replaceAll(m -> isPriceRange(m) ? " " : java.util.regex.Matcher.quoteReplacement(m.group()));
+        out = UPPER.matcher(out).replaceAll(" ");
+        return LOWER.matcher(out).replaceAll(" ");
+    }
+
+    private static boolean isPriceRange(java.util.regex.MatchResult m) {
+        return m.group(1) != null || m.group(3) != null || m.group(4) != null || m.group(6) != null;
+    }
+
+    private static PriceRange between(int a, int b) {
+        return new PriceRange(Math.min(a, b), Math.max(a, b));
+    }
+
+    private static int amount(String digits, String thousandsSuffix) {
+        if (digits.length() > 9) return Integer.MAX_VALUE;
+        long val = Long.parseLong(digits);
+        if (thousandsSuffix != null || val < 500) val *= 1000;
+        return (int) Math.min(val, Integer.MAX_VALUE);
+    }
+
+    public boolean isBounded() { return min != null || max != null; }
+
+    /** "under Rp 20,000", "over Rp 30,000" or "between Rp 15,000 and Rp 25,000". */
+    public String describe() {
+        if (min != null && max != null) return "between Rp " + String.format("%,d", min) + " and Rp " + String.format("%,d", max);
+        if (max != null) return "under Rp " + String.format("%,d", max);
+        if (min != null) return "over Rp " + String.format("%,d", min);
+        return "";
+    }
+}
+
+/**
+ * Decides what a buyer message is asking for. Every keyword rule is compiled
+ * once into a single automaton, so classifying a message is one scan of its
+ * text plus a check of the flags it set. Rules keep their old priority:
+ * greeting, help, thanks, offer, status, recommend, popular, then search.
+ */
+final class IntentRouter {
+    enum Intent { GREETING, HELP, THANKS, OFFER, STATUS, RECOMMEND, POPULAR, SEARCH }
+
+    /** An intent plus the search slots pulled from the same message. */
+    static final class Route {
+        public final Intent intent;
+        public final PriceRange price;  // only parsed for SEARCH
+        public final boolean byRating, bySpeed;
+
+        Route(Intent intent, PriceRange price, boolean byRating, boolean bySpeed) {
+            this.intent = intent;
+            this.price = price;
+            this.byRating = byRating;
+            this.bySpeed = bySpeed;
+        }
+    }
+
+    private static final int HELP = 1, THANKS = 1 << 1, OFFER = 1 << 2, STATUS = 1 << 3,
+        RECOMMEND = 1 << 4, FOOD = 1 << 5, POPULAR = 1 << 6, RATING = 1 << 7, SPEED = 1 << 8;
+
+    private static final Set<String> GREETINGS = Set.of("hi", "hello", "hey", "halo", "hai", "pagi", "siang", "malam");
+    private static final KeywordAutomaton RULES = compile();
+
+    private IntentRouter() {}
+
+    private static KeywordAutomaton compile() {
+        Map<String, Integer> flags = new LinkedHashMap<>();
+        flag(flags, HELP, "help", "bantuan", "apa aja", "what can", "list menu", "show menu");
+        flag(flags, THANKS, "thank", "terima", "makasih");
+        flag(flags, OFFER, "special", "offer", "promo", "diskon", "discount", "deal");
+        flag(flags, STATUS, "open", "available", "buka", "tutup", "busy");
+        flag(flags, RECOMMEND, "recommend", "suggest", "rekomendasi", "saranin", "what should", "apa yang");
+        flag(flags, FOOD, "food");
+        flag(flags, POPULAR, "popular", "favorit", "favorite", "best seller", "terlaris");
+        flag(flags, RATING, "rating", "best", "top", "terbaik");
+        flag(flags, SPEED, "fastest", "cepat", "quick", "tercepat");
+        KeywordAutomaton.Builder b = new KeywordAutomaton.Builder();
+        flags.forEach(b::add);
+        return b.build();
+    }
+
+    private static void flag(Map<String, Integer> flags, int bit, String... keywords) {
+        for (String k : keywords) flags.merge(k, bit, (a, c) -> a | c);
+    }
+
+    public static Route route(String query) {
+        String lower = query.toLowerCase();
+        if (isGreeting(lower)) return new Route(Intent.GREETING, null, false, false);
+
+        // Keywords match anywhere in the text, same as the String.contains checks they replace
+        char[] text = lower.toCharArray();
+        int[] seen = { 0 };
+        RULES.scan(text, text.length, false, (bits, start, end) -> seen[0] |= bits);
+        int f = seen[0];
+
+        Intent intent;
+        if ((f & HELP) != 0) intent = Intent.HELP;
+        else if ((f & THANKS) != 0) intent = Intent.THANKS;
+        else if ((f & OFFER) != 0) intent = Intent.OFFER;
+        else if ((f & STATUS) != 0) intent = Intent.STATUS;
+        else if ((f & RECOMMEND) != 0 && (f & FOOD) == 0 && query.length() < 50) intent = Intent.RECOMMEND;
+        else if ((f & POPULAR) != 0) intent = Intent.POPULAR;
+        else intent = Intent.SEARCH;
+
+        PriceRange price = intent == Intent.SEARCH ? PriceRange.parse(lower) : null;
+        return new Route(intent, price, (f & RATING) != 0, (f & SPEED) != 0);
+    }
+
+    // A bare greeting word, or anything starting with "selamat", plus optional "!.?"
+    private static boolean isGreeting(String lower) {
+        int end = lower.length();
+        while (end > 0 && "!.?".indexOf(lower.charAt(end - 1)) >= 0) end--;
+        if (lower.startsWith("selamat")) return true;
+        return GREETINGS.contains(lower.substring(0, end));
+    }
+}
+
+/**
+ * Prefix trie for search-as-you-type. Every label is reachable from the start
+ * of each of its words ("gor" finds "Nasi Goreng"), and every node stores its
+ * best completions precomputed, so a lookup is one walk down the typed prefix.
+ * {@link #completeAt} completes the words at a caret rather than a whole line.
+ */
+class AutocompleteIndex {
+    static final int TOP_N = 8;
+    static final int MAX_PHRASE_WORDS = 3;  // words before the caret tried as one prefix ("nasi gor")
+    static final int MIN_WORD_LENGTH = 2;   // a lone word shorter than this matches too much to help
+
+    /** Completions for the words at a caret; a chosen label replaces text[from, to). */
+    static final class Completion {
+        public final int from, to;
+        public final List<String> labels;
+
+        Completion(int from, int to, List<String> labels) {
+            this.from = from;
+            this.to = to;
+            this.labels = labels;
+        }
+    }
+
+    private final String[] labels;
+    private final char[][] edgeChars;  // per node, sorted
+    private final int[][] edgeTargets;
+    private final int[][] top;         // per node, best label ids first
+
+    private AutocompleteIndex(String[] labels, char[][] edgeChars, int[][] edgeTargets, int[][] top) {
+        this.labels = labels;
+        this.edgeChars = edgeChars;
+        this.edgeTargets = edgeTargets;
+        this.top = top;
+    }
+
+    static final class Builder {
+        private final Map<String, Integer> weights = new LinkedHashMap<>();
+
+        /** Adds a label; a label added twice keeps its highest weight. */
+        public Builder add(String label, int weight) {
+            weights.merge(label, weight, Math::max);
+            return this;
+        }
+
+        public AutocompleteIndex build() {
+            String[] labels = weights.keySet().toArray(new String[0]);
+            int[] w = new int[labels.length];
+            for (int i = 0; i < labels.length; i++) w[i] = weights.get(labels[i]);
+            // Rank: heavier first, then alphabetical, so equal weights stay deterministic
+            Comparator<Integer> rank = (a, b) -> w[a] != w[b] ? Integer.compare(w[b], w[a]) : labels[a].compareTo(labels[b]);
+
+            List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+            List<List<Integer>> ends = new ArrayList<>();
+            trie.add(new TreeMap<>());
+            ends.add(new ArrayList<>());
+            for (int id = 0; id < labels.length; id++) {
+                char[] key = KeywordAutomaton.normalizeWords(labels[id]);
+                for (int start = 0; start < key.length; start++) {
+                    if (start > 0 && key[start - 1] != ' ') continue;
+                    int state = 0;
+                    for (int i = start; i < key.length; i++) {
+                        Integer next = trie.get(state).get(key[i]);
+                        if (next == null) {
+                            next = trie.size();
+                            trie.get(state).put(key[i], next);
+                            trie.add(new TreeMap<>());
+                            ends.add(new ArrayList<>());
+                        }
+                        state = next;
+                    }
+                    ends.get(state).add(id);
+                }
+            }
+
+            int n = trie.size();
+            char[][] edgeChars = new char[n][];
+            int[][] edgeTargets = new int[n][];
+            for (int s = 0; s < n; s++) {
+                TreeMap<Character, Integer> edges = trie.get(s);
+                edgeChars[s] = new char[edges.size()];
+                edgeTargets[s] = new int[edges.size()];
+                int i = 0;
+                for (Map.Entry<Character, Integer> e : edges.entrySet()) {
+                    edgeChars[s][i] = e.getKey();
+                    edgeTargets[s][i++] = e.getValue();
+                }
+            }
+
+            // Children always get higher node numbers than their parent, so a
+            // reverse sweep sees every child's list before the parent's
+            int[][] top = new int[n][];
+            for (int s = n - 1; s >= 0; s--) {
+                TreeSet<Integer> best = new TreeSet<>(rank);
+                best.addAll(ends.get(s));
+                for (int child : edgeTargets[s]) {
+                    for (int id : top[child]) best.add(id);
+                }
+                int[] kept = new int[Math.min(TOP_N, best.size())];
+                Iterator<Integer> it = best.iterator();
+                for (int i = 0; i < kept.length; i++) kept[i] = it.next();
+                top[s] = kept;
+            }
+            return new AutocompleteIndex(labels, edgeChars, edgeTargets, top);
+        }
+    }
+
+    public List<String> complete(String prefix, int limit) {
+        char[] key = KeywordAutomaton.normalizeWords(prefix);
+        if (key.length == 0) return List.of();
+        int state = 0;
+        for (char c : key) {
+            int i = Arrays.binarySearch(edgeChars[state], c);
+            if (i < 0) return List.of();
+            state = edgeTargets[state][i];
+        }
+        int[] ids = top[state];
+        List<String> out = new ArrayList<>(Math.min(limit, ids.length));
+        for (int i = 0; i < ids.length && i < limit; i++) out.add(labels[ids[i]]);
+        return out;
+    }
+
+    /**
+     * Completes the word the caret is in, as typed up to the caret. Up to
+     * MAX_PHRASE_WORDS - 1 words before it are tried with it first, longest
+     * first, so "cheap nasi gor" finds "Nasi Goreng" and replaces only "nasi
+     * gor". The replaced span runs on to the end of the caret's word.
+     */
+    public Completion completeAt(String text, int caret, int limit) {
+        int to = caret;
+        while (to < text.length() && Character.isLetterOrDigit(text.charAt(to))) to++;
+        int word = caret;
+        while (word > 0 && Character.isLetterOrDigit(text.charAt(word - 1))) word--;
+        if (word == caret) return new Completion(caret, caret, List.of());
+
+        int[] starts = new int[MAX_PHRASE_WORDS];  // word starts, the caret's word first
+        int n = 0;
+        for (int i = word; n < MAX_PHRASE_WORDS; ) {
+            starts[n++] = i;
+            while (i > 0 && !Character.isLetterOrDigit(text.charAt(i - 1))) i--;
+            if (i == 0) break;
+            while (i > 0 && Character.isLetterOrDigit(text.charAt(i - 1))) i--;
+        }
+        for (int k = n - 1; k >= 0; k--) {
+            if (k == 0 && caret - word < MIN_WORD_LENGTH) break;
+            List<String> found = complete(text.substring(starts[k], caret), limit);
+            if (!found.isEmpty()) return new Completion(starts[k], to, found);
+        }
+        return new Completion(word, to, List.of());
+    }
+}
+
+/**
+ * Typo-tolerant lookup over dish-name words and tags. Every term is indexed
+ * by its character trigrams; a query word is only checked for edit distance
+ * against terms that share enough trigrams with it (an edit can destroy at
+ * most four, for a transposition), so lookups never walk the whole vocabulary.
+ */
+class FuzzyIndex {
+    private static final int MIN_WORD_LENGTH = 4;
+
+    private final String[] terms;
+    private final int[][] termItems;           // term id -> ascending item ordinals
+    private final Map<Long, int[]> gramIndex;  // trigram -> ascending term ids
+    private final ThreadLocal<int[][]> scratch; // per-thread overlap counters + touched list
+
+    FuzzyIndex(MenuItem[] items, int[][] tagIndex) {
+        // Growable posting lists keep their length in slot 0
+        Map<String, int[]> postings = new HashMap<>();
+        for (int ordinal = 0; ordinal < items.length; ordinal++) {
+            for (String word : words(items[ordinal].getName())) {
+                postings.put(word, append(postings.get(word), ordinal));
+            }
+        }
+        // Multi-word tags are left to the exact matcher; their single words ("food")
+        // would otherwise pull in unrelated dishes.
+        for (int id = 0; id < tagIndex.length; id++) {
+            String tag = TagDictionary.nameOf(id);
+            if (tagIndex[id].length == 0 || tag.indexOf(' ') >= 0) continue;
+            int[] list = postings.get(tag);
+            for (int ordinal : tagIndex[id]) list = append(list, ordinal);
+            postings.put(tag, list);
+        }
+
+        terms = postings.keySet().toArray(new String[0]);
+        termItems = new int[terms.length][];
+        Map<Long, int[]> grams = new HashMap<>();
+        for (int t = 0; t < terms.length; t++) {
+            int[] list = postings.get(terms[t]);
+            termItems[t] = TagDictionary.sortedDistinct(Arrays.copyOfRange(list, 1, list[0] + 1), list[0]);
+            for (long g : trigrams(terms[t])) grams.put(g, append(grams.get(g), t));
+        }
+        gramIndex = new HashMap<>(grams.size() * 2);
+        for (Map.Entry<Long, int[]> e : grams.entrySet()) {
+            int[] list = e.getValue();
+            gramIndex.put(e.getKey(), Arrays.copyOfRange(list, 1, list[0] + 1));
+        }
+        int vocabulary = terms.length;
+        scratch = ThreadLocal.withInitial(() -> new int[][] { new int[vocabulary], new int[vocabulary] });
+    }
+
+    private static int[] append(int[] list, int value) {
+        if (list == null) list = new int[4];
+        else if (list[0] + 1 == list.length) list = Arrays.copyOf(list, list.length * 2);
+        list[++list[0]] = value;
+        return list;
+    }
+
+    private static List<String> words(String text) {
+        String normalized = new String(KeywordAutomaton.normalizeWords(text));
+        return normalized.isEmpty() ? List.of() : Arrays.asList(normalized.split(" "));
+    }
+
+    /** True for text[from, to) words worth correcting: long enough and not a number like "20k". */
+    public static boolean isCorrectable(char[] text, int from, int to) {
+        if (to - from < MIN_WORD_LENGTH) return false;
+        for (int i = from; i < to; i++) {
+            if (Character.isDigit(text[i])) return false;
+        }
+        return true;
+    }
+
+    private static int maxEdits(int length) {
+        return length < MIN_WORD_LENGTH ? 0 : length < 8 ? 1 : 2;
+    }
+
+    // Distinct trigrams of the word padded with '$' at both ends
+    private static long[] trigrams(String word) {
+        String padded = "$" + word + "$";
+        long[] grams = new long[Math.max(0, padded.length() - 2)];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+        }
+        Arrays.sort(grams);
+        int n = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (n == 0 || grams[n - 1] != grams[i]) grams[n++] = grams[i];
+        }
+        return n == grams.length ? grams : Arrays.copyOf(grams, n);
+    }
+
+    /** Adds the ordinals of every item with a name word or tag within edit distance of word. */
+    public void collect(String word, BitSet into) {
+        int max = maxEdits(word.length());
+        if (max == 0) return;
+        long[] grams = trigrams(word);
+        int needed = grams.length - 4 * max;  // a swap of adjacent letters ("bugrer") costs one edit, four trigrams
+        int[][] s = scratch.get();
+        int[] overlap = s[0], touched = s[1];
+        int touchedCount = 0;
+        for (long g : grams) {
+            int[] posting = gramIndex.get(g);
+            if (posting == null) continue;
+            for (int t : posting) {
+                if (overlap[t]++ == 0) touched[touchedCount++] = t;
+            }
+        }
+        for (int i = 0; i < touchedCount; i++) {
+            int t = touched[i];
+            if (overlap[t] >= needed && Math.abs(terms[t].length() - word.length()) <= max
+                    && editDistance(word, terms[t], max) <= max) {
+                for (int ordinal : termItems[t]) into.set(ordinal);
+            }
+            overlap[t] = 0;
+        }
+    }
+
+    /** Optimal-string-alignment distance, giving up with max + 1 once every row exceeds max. */
+    static int editDistance(String a, String b, int max) {
+        int n = a.length(), m = b.length();
+        int[] prev2 = new int[m + 1], prev = new int[m + 1], cur = new int[m + 1];
+        for (int j = 0; j <= m; j++) prev[j] = j;
+        for (int i = 1; i <= n; i++) {
+            cur[0] = i;
+            int rowMin = cur[0];
+            for (int j = 1; j <= m; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int d = Math.min(Math.min(prev[j] + 1, cur[j - 1] + 1), prev[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d = Math.min(d, prev2[j - 2] + 1);
+                }
+                cur[j] = d;
+                rowMin = Math.min(rowMin, d);
+            }
+            if (rowMin > max) return max + 1;
+            int[] t = prev2; prev2 = prev; prev = cur; cur = t;
+        }
+        return prev[m];
+    }
+}
+
+/**
+ * Aho-Corasick automaton over a fixed set of keywords, each carrying an int
+ * value. Built once; scan() then reports every keyword occurrence in a single
+ * left-to-right pass, optionally only those that start and end on word
+ * boundaries.
+ */
+class KeywordAutomaton {
+    /** Receives a keyword's value and its [start, end) range in the scanned text. */
+    interface MatchHandler { void onMatch(int value, int start, int end); }
+
+    private final char[][] edgeChars;   // per state, sorted
+    private final int[][] edgeTargets;
+    private final int[] fail;
+    private final int[][] outputs;      // keywords ending in each state, including via fail links
+    private final int[] lengths;
+    private final int[] values;
+
+    private KeywordAutomaton(char[][] edgeChars, int[][] edgeTargets, int[] fail,
+                             int[][] outputs, int[] lengths, int[] values) {
+        this.edgeChars = edgeChars;
+        this.edgeTargets = edgeTargets;
+        this.fail = fail;
+        this.outputs = outputs;
+        this.lengths = lengths;
+        this.values = values;
+    }
+
+    static final class Builder {
+        private final Map<String, Integer> keywords = new LinkedHashMap<>();
+
+        /** Adds a keyword; adding the same keyword again replaces its value. */
+        public Builder add(String keyword, int value) {
+            if (!keyword.isEmpty()) keywords.put(keyword, value);
+            return this;
+        }
+
+        public KeywordAutomaton build() {
+            List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+            List<List<Integer>> own = new ArrayList<>();
+            trie.add(new TreeMap<>());
+            own.add(new ArrayList<>());
+            int[] lengths = new int[keywords.size()];
+            int[] values = new int[keywords.size()];
+            int k = 0;
+            for (Map.Entry<String, Integer> e : keywords.entrySet()) {
+                int state = 0;
+                for (char c : e.getKey().toCharArray()) {
+                    Integer next = trie.get(state).get(c);
+                    if (next == null) {
+                        next = trie.size();
+                        trie.get(state).put(c, next);
+                        trie.add(new TreeMap<>());
+                        own.add(new ArrayList<>());
+                    }
+                    state = next;
+                }
+                own.get(state).add(k);
+                lengths[k] = e.getKey().length();
+                values[k] = e.getValue();
+                k++;
+            }
+
+            int n = trie.size();
+            char[][] edgeChars = new char[n][];
+            int[][] edgeTargets = new int[n][];
+            for (int s = 0; s < n; s++) {
+                TreeMap<Character, Integer> edges = trie.get(s);
+                edgeChars[s] = new char[edges.size()];
+                edgeTargets[s] = new int[edges.size()];
+                int i = 0;
+                for (Map.Entry<Character, Integer> e : edges.entrySet()) {
+                    edgeChars[s][i] = e.getKey();
+                    edgeTargets[s][i++] = e.getValue();
+                }
+            }
+
+            // Breadth-first so a state's fail target is final before the state itself
+            int[] fail = new int[n];
+            int[][] outputs = new int[n][];
+            outputs[0] = new int[0];
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int child : edgeTargets[0]) queue.add(child);
+            while (!queue.isEmpty()) {
+                int s = queue.poll();
+                int[] inherited = outputs[fail[s]];
+                List<Integer> mine = own.get(s);
+                outputs[s] = new int[mine.size() + inherited.length];
+                for (int i = 0; i < mine.size(); i++) outputs[s][i] = mine.get(i);
+                System.arraycopy(inherited, 0, outputs[s], mine.size(), inherited.length);
+
+                for (int i = 0; i < edgeChars[s].length; i++) {
+                    char c = edgeChars[s][i];
+                    int child = edgeTargets[s][i];
+                    int f = fail[s];
+                    int t;
+                    while ((t = step(edgeChars, edgeTargets, f, c)) < 0 && f != 0) f = fail[f];
+                    fail[child] = (t >= 0 && s != 0) ? t : 0;
+                    queue.add(child);
+                }
+            }
+            return new KeywordAutomaton(edgeChars, edgeTargets, fail, outputs, lengths, values);
+        }
+    }
+
+    private static int step(char[][] edgeChars, int[][] edgeTargets, int state, char c) {
+        int i = Arrays.binarySearch(edgeChars[state], c);
+        return i >= 0 ? edgeTargets[state][i] : -1;
+    }
+
+    public void scan(char[] text, int length, boolean wholeWords, MatchHandler handler) {
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text[i];
+            int next;
+            while ((next = step(edgeChars, edgeTargets, state, c)) < 0 && state != 0) state = fail[state];
+            state = next < 0 ? 0 : next;
+            for (int k : outputs[state]) {
+                int start = i + 1 - lengths[k];
+                if (wholeWords && !(isBoundary(text, start - 1, length) && isBoundary(text, i + 1, length))) continue;
+                handler.onMatch(values[k], start, i + 1);
+            }
+        }
+    }
+
+    private static boolean isBoundary(char[] text, int pos, int length) {
+        return pos < 0 || pos >= length || !Character.isLetterOrDigit(text[pos]);
+    }
+
+    /**
+     * Lower-cases text and collapses every run of non-alphanumeric characters
+     * into a single space, dropping leading and trailing separators.
+     */
+    public static char[] normalizeWords(CharSequence text) {
+        char[] out = new char[text.length()];
+        int n = 0;
+        boolean gap = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (gap && n > 0) out[n++] = ' ';
+                out[n++] = Character.toLowerCase(c);
+                gap = false;
+            } else {
+                gap = true;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+}
+
+/**
+ * Size-bounded LRU cache of search results. Entries are only valid for the
+ * catalog version they were computed under; the first lookup after the
+ * version moves drops the whole cache.
+ */
+class QueryCache {
+    /** Normalized query: known tag ids, correctable leftover words, price bounds and sort mode. */
+    static final class Key {
+        private final boolean matchAll;
+        private final int[] tagIds;
+        private final String[] freeWords;
+        private final int priceFloor, priceCap;
+        private final boolean byRating, bySpeed;
+
+        Key(boolean matchAll, int[] tagIds, String[] freeWords, int priceFloor, int priceCap,
+            boolean byRating, boolean bySpeed) {
+            this.matchAll = matchAll;
+            this.tagIds = tagIds;
+            this.freeWords = freeWords;
+            this.priceFloor = priceFloor;
+            this.priceCap = priceCap;
+            this.byRating = byRating;
+            this.bySpeed = bySpeed;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return matchAll == k.matchAll && priceFloor == k.priceFloor && priceCap == k.priceCap
+                && byRating == k.byRating
+                && bySpeed == k.bySpeed && Arrays.equals(tagIds, k.tagIds)
+                && Arrays.equals(freeWords, k.freeWords);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = Arrays.hashCode(tagIds) * 31 + Arrays.hashCode(freeWords);
+            h = 31 * (31 * h + priceFloor) + priceCap;
+            return 31 * h + (matchAll ? 4 : 0) + (byRating ? 2 : 0) + (bySpeed ? 1 : 0);
+        }
+    }
+
+    private final Map<Key, List<SellerItem>> entries;
+    private int version = Integer.MIN_VALUE;
+    private long hits, misses;
+
+    public QueryCache(int capacity) {
+        entries = new LinkedHashMap<Key, List<SellerItem>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, List<SellerItem>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized List<SellerItem> get(Key key, int catalogVersion) {
+        if (catalogVersion != version) {
+            entries.clear();
+            version = catalogVersion;
+        }
+        List<SellerItem> result = entries.get(key);
+        if (result == null) misses++; else hits++;
+        return result;
+    }
+
+    public synchronized void put(Key key, int catalogVersion, List<SellerItem> results) {
+        if (catalogVersion != version) return;  // catalog moved on while we were ranking
+        entries.put(key, List.copyOf(results));
+    }
+
+    public synchronized void clear() { entries.clear(); }
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized int size() { return entries.size(); }
+}
+
+/**
+ * Bounded min-heap that keeps the K best (ordinal, key) pairs offered to it.
+ * Higher keys rank first; equal keys fall back to the lower ordinal, which
+ * reproduces what a stable sort over catalog order would return.
+ */
+class TopKSelector {
+    private final int[] ordinals;
+    private final double[] keys;
+    private int size;
+
+    public TopKSelector(int k) {
+        ordinals = new int[k];
+        keys = new double[k];
+    }
+
+    private static boolean ranksBelow(double keyA, int ordA, double keyB, int ordB) {
+        return keyA < keyB || (keyA == keyB && ordA > ordB);
+    }
+
+    public void offer(int ordinal, double key) {
+        if (size < ordinals.length) {
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!ranksBelow(key, ordinal, keys[parent], ordinals[parent])) break;
+                ordinals[i] = ordinals[parent]; keys[i] = keys[parent];
+                i = parent;
+            }
+            ordinals[i] = ordinal; keys[i] = key;
+        } else if (size > 0 && ranksBelow(keys[0], ordinals[0], key, ordinal)) {
+            siftDown(0, ordinal, key, size);
+        }
+    }
+
+    private void siftDown(int i, int ordinal, double key, int n) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) break;
+            if (child + 1 < n && ranksBelow(keys[child + 1], ordinals[child + 1], keys[child], ordinals[child])) child++;
+            if (!ranksBelow(keys[child], ordinals[child], key, ordinal)) break;
+            ordinals[i] = ordinals[child]; keys[i] = keys[child];
+            i = child;
+        }
+        ordinals[i] = ordinal; keys[i] = key;
+    }
+
+    /** Returns the kept ordinals best-first. Empties the selector. */
+    public int[] toSortedArray() {
+        int[] out = new int[size];
+        while (size > 0) {
+            int last = --size;
+            out[last] = ordinals[0];
+            siftDown(0, ordinals[last], keys[last], last);
+        }
+        return out;
+    }
+}
+
+// ===============================
+// ORDER HISTORY MANAGER
+// ===============================
+
+/**
+ * Completed orders in completion order, indexed by seller, customer phone
+ * and completion time. Reads come a page at a time, newest first, so the
+ * history window and reports cost O(page) however long the history grows.
+ *
+ * An order's sequence number is its position. Completion times are kept
+ * non-decreasing, so a time range is a range of sequence numbers. The seller
+ * and phone indexes are ascending sequence lists. Everything is guarded by
+ * the store's lock; a page holds it only for the orders it returns plus
+ * those it skips in a seller-and-phone query.
+ */
+class OrderHistoryStore {
+    /** Cursor of the first, newest page. */
+    public static final int NEWEST = Integer.MAX_VALUE;
+
+    /** A newest-first slice of the history; pass {@link #next} back to get the page after it. */
+    public static final class Page {
+        public final List<Order> orders;
+        public final int next;  // cursor of the following page, or -1 at the end
+
+        Page(List<Order> orders, int next) {
+            this.orders = orders;
+            this.next = next;
+        }
+
+        public boolean hasMore() { return next >= 0; }
+    }
+
+    private static final class Seqs {
+        int[] seqs = new int[4];
+        int size;
+
+        void add(int seq) {
+            if (size == seqs.length) seqs = Arrays.copyOf(seqs, size * 2);
+            seqs[size++] = seq;
+        }
+    }
+
+    private final List<Order> orders = new ArrayList<>();
+    private long[] completedMillis = new long[64];
+    private final Map<String, Order> byId = new HashMap<>();
+    private final Map<String, Seqs> bySeller = new HashMap<>();
+    private final Map<String, Seqs> byPhone = new HashMap<>();
+
+    /** Adds the order as completed now; false if it is already in the history. */
+    public boolean add(Order order) { return add(order, System.currentTimeMillis()); }
+
+    /** Same, completed at the given time (raised to the latest one so far, if earlier). */
+    public synchronized boolean add(Order order, long completedAt) {
+        if (byId.putIfAbsent(order.getOrderId(), order) != null) return false;
+        int seq = orders.size();
+        if (seq == completedMillis.length) completedMillis = Arrays.copyOf(completedMillis, seq * 2);
+        completedMillis[seq] = seq == 0 ? completedAt : Math.max(completedAt, completedMillis[seq - 1]);
+        orders.add(order);
+        bySeller.computeIfAbsent(order.getSeller().getName(), k -> new Seqs()).add(seq);
+        byPhone.computeIfAbsent(order.getPhone(), k -> new Seqs()).add(seq);
+        return true;
+    }
+
+    public synchronized int size() { return orders.size(); }
+    public synchronized Order find(String orderId) { return byId.get(orderId); }
+
+    public synchronized int countBySeller(String sellerName) {
+        Seqs s = bySeller.get(sellerName);
+        return s == null ? 0 : s.size;
+    }
+
+    public synchronized int countByPhone(String phone) {
+        Seqs s = byPhone.get(phone);
+        return s == null ? 0 : s.size;
+    }
+
+    /** Orders completed in [fromMillis, toMillis). */
+    public synchronized int countBetween(long fromMillis, long toMillis) {
+        return Math.max(0, firstAtOrAfter(toMillis) - firstAtOrAfter(fromMillis));
+    }
+
+    /** Every completed order, oldest first. Copies the whole history; prefer {@link #page}. */
+    public synchronized List<Order> all() { return new ArrayList<>(orders); }
+
+    /** The newest page of everything. */
+    public Page page(int cursor, int limit) {
+        return page(null, null, Long.MIN_VALUE, Long.MAX_VALUE, cursor, limit);
+    }
+
+    /**
+     * Up to limit orders older than cursor that were completed in
+     * [fromMillis, toMillis) and match sellerName and phone (null matches
+     * any), newest first. The page looks one match past its last order
+     * before handing out a cursor, so a page that ends the results exactly
+     * full has next == -1 rather than leading to an empty page.
+     */
+    public synchronized Page page(String sellerName, String phone, long fromMillis, long toMillis, int cursor, int limit) {
+        if (limit < 1) throw new IllegalArgumentException("Page limit must be at least 1: " + limit);
+        int lo = firstAtOrAfter(fromMillis);
+        int hi = Math.min(cursor, firstAtOrAfter(toMillis));
+        Seqs sellerSeqs = sellerName == null ? null : bySeller.get(sellerName);
+        Seqs phoneSeqs = phone == null ? null : byPhone.get(phone);
+        List<Order> out = new ArrayList<>(Math.min(limit, 64));
+        if ((sellerName != null && sellerSeqs == null) || (phone != null && phoneSeqs == null)) return new Page(out, -1);
+
+        // Walk the shorter index (or every order) backwards; check the other field on the way
+        Seqs walk = sellerSeqs == null ? phoneSeqs
+            : phoneSeqs == null || sellerSeqs.size <= phoneSeqs.size ? sellerSeqs : phoneSeqs;
+        int i = walk == null ? hi - 1 : lowerBound(walk, hi) - 1;
+        for (; i >= 0; i--) {
+            int seq = walk == null ? i : walk.seqs[i];
+            if (seq < lo) break;
+            Order o = orders.get(seq);
+            if (sellerName != null && walk != sellerSeqs && !o.getSeller().getName().equals(sellerName)) continue;
+            if (phone != null && walk != phoneSeqs && !o.getPhone().equals(phone)) continue;
+            if (out.size() == limit) return new Page(out, seq + 1);  // seq matches, so the next page is not empty
+            out.add(o);
+        }
+        return new Page(out, -1);
+    }
+
+    private int firstAtOrAfter(long millis) {
+        int lo = 0, hi = orders.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (completedMillis[mid] < millis) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private static int lowerBound(Seqs s, int key) {
+        int lo = 0, hi = s.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (s.seqs[mid] < key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+}
+
+class OrderHistoryManager {
+    // Written from Swing timers, the engine and gateway threads; the store locks itself
+    private static final OrderHistoryStore completedOrders = new OrderHistoryStore();
+    private static final ListenerRegistry<OrderHistoryListener> listeners = new ListenerRegistry<>();
+
+    public static OrderHistoryStore store() { return completedOrders; }
+
+    public static void addCompletedOrder(Order order) {
+        if (completedOrders.add(order)) notifyListeners();
+    }
+
+    /**
+     * Bulk add for orders recovered at startup; listeners hear about it once.
+     * Their completion time was not recorded, so it is taken to be the order time.
+     */
+    public static void restoreCompletedOrders(Collection<Order> orders) {
+        for (Order o : orders) completedOrders.add(o, FoodCodec.toMillis(o.getOrderTime()));
+        notifyListeners();
+    }
+
+    /** Copies the whole history, oldest first; page through {@link #store()} instead where you can. */
+    public static List<Order> getCompletedOrders() {
+        return completedOrders.all();
+    }
+
+    public static Order findOrder(String orderId) {
+        return completedOrders.find(orderId);
+    }
+
+    public static void addListener(OrderHistoryListener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(OrderHistoryListener listener) {
+        listeners.remove(listener);
+    }
+
+    private static void notifyListeners() {
+        listeners.forEach(OrderHistoryListener::onOrderHistoryChanged);
+    }
+}
+
+interface OrderHistoryListener {
+    void onOrderHistoryChanged();
+}
+
+/**
+ * Event log of every order, so open orders survive a crash or restart.
+ * Placing an order appends a CREATED event holding the whole order
+ * ({@link FoodCodec}, items by reference). Each real status change appends
+ * a STATUS event with the order's new version. Both go to
+ * {@code <foodchat.dataDir>/orders/events-NNNNNN.log}.
+ *
+ * A snapshot starts a new events file n, then writes the open orders and the
+ * last {@link #KEEP_COMPLETED} completed ones to snapshot-n.bin. Older files
+ * are deleted once it is safely on disk. Orders that reach a final status
+ * leave the log's map at once (completed ones via that bounded window), so
+ * snapshots and recovery stay proportional to the open orders. Orders
+ * may keep changing while the snapshot is written. Replay therefore only
+ * applies a STATUS event newer than the version it already has, and a
+ * CREATED event for an order it does not already know, so the log can
+ * overlap a snapshot without harm. STATUS events of orders that were
+ * compacted away find nothing and are skipped. Recovery loads the newest complete
+ * snapshot and replays the events files from n on.
+ *
+ * Every record is [int length][int crc32][payload]. A torn or corrupt
+ * record ends the log and is cut off before appending resumes. Appends are
+ * written at once and forced to disk by {@link #force()}, which the engine
+ * runs every second.
+ */
+class OrderLog implements OrderStatusListener {
+    static final int EVENT_CREATED = 1, EVENT_STATUS = 2;
+    static final int SNAPSHOT_MAGIC = 0x46434F53;  // "FCOS"
+    static final int SNAPSHOT_CHUNK = 1024;         // orders per codec unit, which bounds its dictionary
+    static final long SNAPSHOT_EVERY = 100_000;    // events
+    static final int KEEP_COMPLETED = 1000;         // completed orders carried over for the history window
+
+    private final java.nio.file.Path dir;
+    private final Map<String, Order> orders = new ConcurrentHashMap<>();  // open orders only
+    private final ArrayDeque<Order> completed = new ArrayDeque<>();       // newest last, guarded by this
+    private final List<Order> recovered;
+    private final long recoveryMillis;
+    private final FoodCodec.Writer writer = new FoodCodec.Writer(512);
+    private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    private java.nio.ByteBuffer out = java.nio.ByteBuffer.allocate(1024);
+    private java.nio.channels.FileChannel events;
+    private int segment;
+    private long eventsSinceSnapshot;
+    private boolean dirty;
+
+    private OrderLog(java.nio.file.Path dir, FoodCodec.Resolver resolver) throws java.io.IOException {
+        long started = System.nanoTime();
+        this.dir = dir;
+        java.nio.file.Files.createDirectories(dir);
+        Map<String, Order> byId = new LinkedHashMap<>();
+        int base = loadNewestSnapshot(resolver, byId);
+        List<Integer> logs = numbered("events-", ".log");
+        segment = base;
+        for (int n : logs) {
+            if (n < base) continue;
+            segment = n;
+            long good = replay(path("events-", n, ".log"), resolver, byId);
+            if (n == logs.get(logs.size() - 1)) {
+                events = java.nio.channels.FileChannel.open(path("events-", n, ".log"),
+                    java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+                events.truncate(good);
+                events.position(good);
+            }
+        }
+        if (events == null) openEvents(segment);
+        recovered = new ArrayList<>();
+        for (Order o : byId.values()) {
+            if (o.getStatus() == OrderStatus.COMPLETED) keepCompleted(o);
+            else if (!o.getStatus().isFinal()) orders.put(o.getOrderId(), o);
+        }
+        recovered.addAll(completed);
+        for (Order o : byId.values()) {
+            if (orders.containsKey(o.getOrderId())) {
+                recovered.add(o);
+                o.addStatusListener(this);
+            }
+        }
+        recoveryMillis = (System.nanoTime() - started) / 1_000_000;
+    }
+
+    /** Opens the log in dir, rebuilding every order it holds; see {@link #getRecoveredOrders()}. */
+    public static OrderLog open(java.nio.file.Path dir, FoodCodec.Resolver resolver) throws java.io.IOException {
+        return new OrderLog(dir, resolver);
+    }
+
+    /** Orders rebuilt when the log was opened: the kept completed ones, then the open ones, each oldest first. */
+    public List<Order> getRecoveredOrders() { return recovered; }
+    public long getRecoveryMillis() { return recoveryMillis; }
+    /** Open orders. */
+    public int size() { return orders.size(); }
+    public Order find(String orderId) { return orders.get(orderId); }
+
+    /** Records a new order and follows its status changes from now on. */
+    public void created(Order order) {
+        synchronized (this) {
+            writer.begin().writeVarLong(EVENT_CREATED);
+            writer.writeOrder(order);
+            append();
+            orders.put(order.getOrderId(), order);  // inside the lock: a snapshot sees it iff its event is older
+        }
+        order.addStatusListener(this);
+    }
+
+    @Override
+    public void onStatusChanged(Order order) {}
+
+    @Override
+    public synchronized void onStatusChanged(Order order, OrderStatus status, int version) {
+        writer.begin().writeVarLong(EVENT_STATUS);
+        writer.writeString(order.getOrderId());
+        writer.writeVarLong(version);
+        writer.writeVarLong(status.ordinal());
+        writer.writeVarLong(order.getEstimatedMinutes());
+        append();
+        if (status.isFinal() && orders.remove(order.getOrderId()) != null) {
+            order.removeStatusListener(this);
+            if (status == OrderStatus.COMPLETED) keepCompleted(order);
+        }
+    }
+
+    public synchronized void force() {
+        if (!dirty) return;
+        try {
+            events.force(false);
+            dirty = false;
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    public void snapshotIfDue() throws java.io.IOException {
+        boolean due;
+        synchronized (this) { due = eventsSinceSnapshot >= SNAPSHOT_EVERY; }
+        if (due) snapshot();
+    }
+
+    /** Starts a new events file and writes the open and kept completed orders to a snapshot next to it; returns how many. */
+    public int snapshot() throws java.io.IOException {
+        int n;
+        List<Order> all;
+        synchronized (this) {
+            events.force(false);
+            events.close();
+            n = segment + 1;
+            openEvents(n);
+            eventsSinceSnapshot = 0;
+            all = new ArrayList<>(completed);
+            all.addAll(orders.values());
+        }
+        all.sort(Comparator.comparing(Order::getOrderTime));
+
+        java.nio.file.Path tmp = path("snapshot-", n, ".tmp");
+        FoodCodec.Writer w = new FoodCodec.Writer(64 * 1024);
+        java.util.zip.CRC32 sum = new java.util.zip.CRC32();
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(tmp,
+                 java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING,
+                 java.nio.file.StandardOpenOption.WRITE)) {
+            java.nio.ByteBuffer head = java.nio.ByteBuffer.allocate(8);
+            writeFully(ch, head.putInt(SNAPSHOT_MAGIC).putInt(all.size()).flip());
+            for (int from = 0; from < all.size(); from += SNAPSHOT_CHUNK) {
+                int to = Math.min(all.size(), from + SNAPSHOT_CHUNK);
+                w.begin().writeVarLong(to - from);
+                for (int i = from; i < to; i++) w.writeOrder(all.get(i));
+                sum.reset();
+                sum.update(w.array(), 0, w.size());
+                writeFully(ch, head.clear().putInt(w.size()).putInt((int) sum.getValue()).flip());
+                writeFully(ch, java.nio.ByteBuffer.wrap(w.array(), 0, w.size()));
+            }
+            writeFully(ch, head.clear().putInt(0).putInt(0).flip());  // end marker: the snapshot is complete
+            ch.force(true);
+        }
+        java.nio.file.Files.move(tmp, path("snapshot-", n, ".bin"), java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        for (int old : numbered("snapshot-", ".bin")) if (old < n) java.nio.file.Files.deleteIfExists(path("snapshot-", old, ".bin"));
+        for (int old : numbered("events-", ".log")) if (old < n) java.nio.file.Files.deleteIfExists(path("events-", old, ".log"));
+        return all.size();
+    }
+
+    public synchronized void close() {
+        if (events == null || !events.isOpen()) return;
+        try {
+            events.force(false);
+            events.close();
+        } catch (java.io.IOException ignored) {}
+    }
+
+    // ---- writing ----
+
+    private void keepCompleted(Order order) {
+        completed.addLast(order);
+        if (completed.size() > KEEP_COMPLETED) completed.removeFirst();
+    }
+
+    private void append() {
+        int size = writer.size();
+        if (out.capacity() < 8 + size) out = java.nio.ByteBuffer.allocate(Math.max(8 + size, out.capacity() * 2));
+        crc.reset();
+        crc.update(writer.array(), 0, size);
+        out.clear();
+        out.putInt(size).putInt((int) crc.getValue()).put(writer.array(), 0, size).flip();
+        try {
+            writeFully(events, out);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        eventsSinceSnapshot++;
+        dirty = true;
+    }
+
+    private void openEvents(int n) throws java.io.IOException {
+        events = java.nio.channels.FileChannel.open(path("events-", n, ".log"), java.nio.file.StandardOpenOption.CREATE,
+            java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+        events.position(events.size());
+        segment = n;
+    }
+
+    private static void writeFully(java.nio.channels.FileChannel ch, java.nio.ByteBuffer b) throws java.io.IOException {
+        while (b.hasRemaining()) ch.write(b);
+    }
+
+    // ---- recovery ----
+
+    // Loads the newest snapshot that reads back completely; returns its number, or the oldest log's if none does
+    private int loadNewestSnapshot(FoodCodec.Resolver resolver, Map<String, Order> into) throws java.io.IOException {
+        List<Integer> snapshots = numbered("snapshot-", ".bin");
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            Map<String, Order> loaded = new LinkedHashMap<>();
+            if (readSnapshot(path("snapshot-", snapshots.get(i), ".bin"), resolver, loaded)) {
+                into.putAll(loaded);
+                return snapshots.get(i);
+            }
+        }
+        List<Integer> logs = numbered("events-", ".log");
+        return logs.isEmpty() ? 0 : logs.get(0);
+    }
+
+    private static boolean readSnapshot(java.nio.file.Path file, FoodCodec.Resolver resolver, Map<String, Order> into)
+            throws java.io.IOException {
+        java.nio.ByteBuffer b = map(file);
+        if (b.remaining() < 8 || b.getInt() != SNAPSHOT_MAGIC) return false;
+        int expected = b.getInt();
+        FoodCodec.Reader reader = new FoodCodec.Reader(resolver);
+        java.util.zip.CRC32 sum = new java.util.zip.CRC32();
+        int read = 0;
+        while (true) {
+            java.nio.ByteBuffer unit = nextRecord(b, sum);
+            if (unit == null) return false;           // torn or corrupt
+            if (!unit.hasRemaining()) break;          // end marker
+            reader.begin(unit);
+            for (int k = (int) reader.readVarLong(); k > 0; k--, read++) {
+                Order o = reader.readOrder();
+                if (o != null) into.put(o.getOrderId(), o);
+            }
+        }
+        return read == expected;
+    }
+
+    // Applies one events file; returns the length of its intact prefix
+    private static long replay(java.nio.file.Path file, FoodCodec.Resolver resolver, Map<String, Order> into)
+            throws java.io.IOException {
+        java.nio.ByteBuffer b = map(file);
+        FoodCodec.Reader reader = new FoodCodec.Reader(resolver);
+        java.util.zip.CRC32 sum = new java.util.zip.CRC32();
+        while (true) {
+            int at = b.position();
+            java.nio.ByteBuffer unit = nextRecord(b, sum);
+            if (unit == null || !unit.hasRemaining()) return at;
+            reader.begin(unit);
+            int type = (int) reader.readVarLong();
+            if (type == EVENT_CREATED) {
+                Order o = reader.readOrder();
+                if (o != null) into.putIfAbsent(o.getOrderId(), o);
+            } else if (type == EVENT_STATUS) {
+                Order o = into.get(reader.readString());
+                int version = (int) reader.readVarLong();
+                OrderStatus status = OrderStatus.values()[(int) reader.readVarLong()];
+                int minutes = (int) reader.readVarLong();
+                if (o != null && version > o.getVersion()) o.restoreStatus(status, version, minutes);
+            }
+        }
+    }
+
+    // The next record's payload; empty at a zero-length end marker, null if torn or corrupt
+    private static java.nio.ByteBuffer nextRecord(java.nio.ByteBuffer b, java.util.zip.CRC32 sum) {
+        if (b.remaining() < 8) return null;
+        int length = b.getInt();
+        int expected = b.getInt();
+        if (length == 0) return b.slice(b.position(), 0);
+        if (length < 0 || length > b.remaining()) return null;
+        java.nio.ByteBuffer unit = b.slice(b.position(), length);
+        sum.reset();
+        sum.update(unit.duplicate());
+        if ((int) sum.getValue() != expected) return null;
+        b.position(b.position() + length);
+        return unit;
+    }
+
+    private static java.nio.MappedByteBuffer map(java.nio.file.Path file) throws java.io.IOException {
+        try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(file, java.nio.file.StandardOpenOption.READ)) {
+            return ch.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    private java.nio.file.Path path(String prefix, int n, String suffix) {
+        return dir.resolve(String.format("%s%06d%s", prefix, n, suffix));
+    }
+
+    private List<Integer> numbered(String prefix, String suffix) throws java.io.IOException {
+        List<Integer> out = new ArrayList<>();
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+            files.map(f -> f.getFileName().toString())
+                .filter(f -> f.startsWith(prefix) && f.endsWith(suffix) && f.length() == prefix.length() + 6 + suffix.length())
+                .forEach(f -> out.add(Integer.parseInt(f.substring(prefix.length(), prefix.length() + 6))));
+        }
+        Collections.sort(out);
+        return out;
+    }
+}
+
+// ===============================
+// HEADLESS ENGINE
+// ===============================
+
+/**
+ * Everything the app does without a screen: chat, catalog search, the bot,
+ * checkout and each seller's order desk. Windows are clients of this class,
+ * and nothing here touches Swing, so it also runs under
+ * {@code java.awt.headless=true} (see {@link HeadlessConsole}).
+ */
+class FoodChatEngine {
+    /** Delay between checkout and the seller's desk picking the order up. */
+    static final long ORDER_HANDOFF_MS = 500;
+    static final long ORDER_LOG_FORCE_MS = 1000;
+    static final long ORDER_SNAPSHOT_CHECK_MS = 60_000;
+
+    private final ChatBridge chat;
+    private final MultiStoreSystem store;
+    private final Map<String, SellerDesk> desks = new ConcurrentHashMap<>();
+    private final Map<Order, ChatTopic> orderConversations = new ConcurrentHashMap<>();  // open orders only
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers = newWorkers();  // bot answers, remote checkouts: anything that may block
+    private final FoodChatBot bot;
+    private volatile OrderLog orderLog;
+
+    public FoodChatEngine() {
+        this(new ChatBridge(), new MultiStoreSystem());
+    }
+
+    public FoodChatEngine(ChatBridge chat, MultiStoreSystem store) {
+        this.chat = chat;
+        this.store = store;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "foodchat-engine");
+            t.setDaemon(true);
+            return t;
+        });
+        this.bot = new FoodChatBot(chat, store, scheduler, workers);
+    }
+
+    /** Virtual threads where the runtime has them (Java 21+), else a small daemon pool. */
+    static ExecutorService newWorkers() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger ids = new AtomicInteger();
+            return Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "foodchat-worker-" + ids.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public ChatBridge chat() { return chat; }
+    public MultiStoreSystem store() { return store; }
+    public ScheduledExecutorService scheduler() { return scheduler; }
+    public ExecutorService workers() { return workers; }
+
+    /** The order desk of a seller, created on first use. */
+    public SellerDesk desk(Seller seller) {
+        return desks.computeIfAbsent(seller.getName(), n -> new SellerDesk(seller, chat));
+    }
+
+    /**
+     * Recovers orders from the order log (open ones go back to their desks),
+     * replays the journal's last {@code replayTail} messages into whoever has
+     * subscribed so far, then switches chat to async delivery. Call once all
+     * clients are listening.
+     */
+    public void start(int replayTail) {
+        try {
+            OrderLog log = OrderLog.open(ChatJournal.dataDir().resolve("orders"), store.codecResolver());
+            restoreOrders(log.getRecoveredOrders());
+            orderLog = log;
+            // A task that throws is never run again, so both keep their failures to themselves
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    log.force();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();  // retried next time; the events stay marked dirty
+                }
+            }, ORDER_LOG_FORCE_MS, ORDER_LOG_FORCE_MS, TimeUnit.MILLISECONDS);
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    log.snapshotIfDue();
+                } catch (java.io.IOException | RuntimeException e) {
+                    e.printStackTrace();  // the log keeps growing; recovery just replays more
+                }
+            }, ORDER_SNAPSHOT_CHECK_MS, ORDER_SNAPSHOT_CHECK_MS, TimeUnit.MILLISECONDS);
+        } catch (java.io.IOException | RuntimeException e) {
+            e.printStackTrace();  // orders still work, they just won't survive a restart
+        }
+        try {
+            chat.attachJournal(ChatJournal.openDefault(), codecResolver(), replayTail);
+        } catch (java.io.IOException | RuntimeException e) {
+            e.printStackTrace();  // chat still works, it just won't survive a restart
+        }
+        chat.startAsync(1024, ChatBridge.Backpressure.BLOCK);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "foodchat-engine-shutdown"));
+    }
+
+    /** Stops the workers and timers, then closes chat (which flushes the journal) and the order log. Safe to call twice. */
+    public void shutdown() {
+        workers.shutdownNow();
+        scheduler.shutdownNow();
+        chat.close();
+        OrderLog log = orderLog;
+        if (log != null) log.close();
+    }
+
+    public OrderLog orderLog() { return orderLog; }
+
+    // Completed orders refill the history; open ones return to their desks without re-confirming to the buyer
+    private void restoreOrders(List<Order> orders) {
+        List<Order> completed = new ArrayList<>();
+        for (Order o : orders) {
+            if (o.getStatus() == OrderStatus.COMPLETED) completed.add(o);
+            else if (!o.getStatus().isFinal()) desk(o.getSeller()).restoreOrder(o);
+        }
+        if (!completed.isEmpty()) OrderHistoryManager.restoreCompletedOrders(completed);
+    }
+
+    // The store's resolver, except that journaled order cards find any logged order, not only completed ones
+    private FoodCodec.Resolver codecResolver() {
+        FoodCodec.Resolver catalog = store.codecResolver();
+        return new FoodCodec.Resolver() {
+            public SellerItem item(String sellerName, String itemId) { return catalog.item(sellerName, itemId); }
+            public SpecialOffer offer(String title) { return catalog.offer(title); }
+            public Seller seller(String sellerName) { return catalog.seller(sellerName); }
+            public Order order(String orderId) {
+                OrderLog log = orderLog;
+                Order o = log == null ? null : log.find(orderId);
+                return o != null ? o : catalog.order(orderId);
+            }
+        };
+    }
+
+    /** Posts the buyer's message and lets the bot answer it. */
+    public void sendBuyerMessage(String text) {
+        chat.sendFromBuyer(text);
+        bot.respond(text);
+    }
+
+    /** Same, for one buyer session's conversation. */
+    public void sendBuyerMessage(ChatTopic conversation, String buyerName, String text) {
+        chat.sendFromBuyer(conversation, buyerName, text);
+        bot.respond(text, conversation);
+    }
+
+    /** Turns the cart into an order for seller, empties the cart, and hands the order to the seller's desk. */
+    public Order placeOrder(String name, String phone, String address, String notes, ShoppingCart cart, Seller seller) {
+        return placeOrder(ChatTopic.BUYER, name, phone, address, notes, cart, seller);
+    }
+
+    public Order placeOrder(ChatTopic conversation, String name, String phone, String address, String notes,
+                            ShoppingCart cart, Seller seller) {
+        Order order = new Order(name, phone, address, notes, cart.getItems(), cart.getTotal(), seller);
+        cart.clear();
+        OrderLog log = orderLog;
+        if (log != null) log.created(order);
+        orderConversations.put(order, conversation);
+        chat.openConversation(conversation, seller.getName());
+        SellerDesk desk = desk(seller);
+        scheduler.schedule(() -> desk.receiveOrder(order, conversation), ORDER_HANDOFF_MS, TimeUnit.MILLISECONDS);
+        chat.sendSystem(conversation, "🚀 Order " + order.getOrderId() + " placed with " + seller.getName() +
+            "! Est. " + order.getEstimatedMinutes() + " minutes.");
+        return order;
+    }
+
+    /** Applies the change and tells the buyer; false (and nothing sent) if the order cannot move there. */
+    public boolean updateOrderStatus(Order order, OrderStatus status) {
+        if (!order.updateStatus(status)) return false;
+        ChatTopic conversation = orderConversations.getOrDefault(order, ChatTopic.BUYER);
+        if (status.isFinal()) orderConversations.remove(order);
+        chat.sendOrderUpdate(conversation, order);
+        return true;
+    }
+
+    public void setSellerBusy(Seller seller, boolean busy) {
+        seller.setBusy(busy);
+        if (busy) chat.sendSystem("⚠️ " + seller.getName() + " is currently busy. Orders may take longer.");
+        else chat.sendSystem("✅ " + seller.getName() + " is back and ready for orders!");
+    }
+}
+
+interface SellerDeskListener { void onOrderReceived(Order order); }
+
+/** One seller's queue of open orders; finished or rejected orders leave it. */
+class SellerDesk implements OrderStatusListener {
+    private final Seller seller;
+    private final ChatBridge chat;
+    private final List<Order> activeOrders = new CopyOnWriteArrayList<>();
+    private final ListenerRegistry<SellerDeskListener> listeners = new ListenerRegistry<>();
+
+    SellerDesk(Seller seller, ChatBridge chat) {
+        this.seller = seller;
+        this.chat = chat;
+    }
+
+    public void receiveOrder(Order order) { receiveOrder(order, ChatTopic.BUYER); }
+
+    /** Queues the order and confirms it on the buyer conversation it came from. */
+    public void receiveOrder(Order order, ChatTopic conversation) {
+        restoreOrder(order);
+        chat.sendFromSeller(conversation, seller.getName(),
+            "✅ Order received! " + seller.getName() + " is preparing your food. Est. " +
+            order.getEstimatedMinutes() + " minutes.");
+    }
+
+    /** Queues an order recovered at startup; the buyer was told about it the first time. */
+    public void restoreOrder(Order order) {
+        activeOrders.add(order);
+        seller.setCurrentQueueCount(activeOrders.size());
+        order.addStatusListener(this);
+        listeners.forEach(l -> l.onOrderReceived(order));
+    }
+
+    @Override
+    public void onStatusChanged(Order order) {
+        if (order.getStatus().isFinal()) {
+            activeOrders.remove(order);
+            seller.setCurrentQueueCount(activeOrders.size());
+        }
+    }
+
+    public Seller getSeller() { return seller; }
+    public List<Order> getActiveOrders() { return new ArrayList<>(activeOrders); }
+    public void addListener(SellerDeskListener l) { listeners.add(l); }
+    public void removeListener(SellerDeskListener l) { listeners.remove(l); }
+}
+
+/**
+ * The "FoodChat AI" assistant: answers buyer messages after a short typing
+ * delay, on the engine's scheduler rather than a Swing timer.
+ */
+class FoodChatBot {
+    static final String NAME = "FoodChat AI";
+    /** How long one answer may take to compute before the buyer gets a timeout note instead. */
+    static final long DEADLINE_MS = 3000;
+
+    private final ChatBridge chat;
+    private final MultiStoreSystem store;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+    private final long deadlineMs;
+    private final Map<ChatTopic, Reply> inFlight = new ConcurrentHashMap<>();  // latest query per conversation
+
+    FoodChatBot(ChatBridge chat, MultiStoreSystem store, ScheduledExecutorService scheduler, ExecutorService workers) {
+        this(chat, store, scheduler, workers, DEADLINE_MS);
+    }
+
+    FoodChatBot(ChatBridge chat, MultiStoreSystem store, ScheduledExecutorService scheduler, ExecutorService workers,
+                long deadlineMs) {
+        this.chat = chat;
+        this.store = store;
+        this.scheduler = scheduler;
+        this.workers = workers;
+        this.deadlineMs = deadlineMs;
+    }
+
+    /**
+     * One query being answered. The answer is computed on a worker; its
+     * messages are only scheduled once it is complete, each at its typing
+     * delay counted from when the query arrived. A newer query on the same
+     * conversation, or the deadline, stops whatever has not been sent yet.
+     */
+    private final class Reply {
+        static final int RUNNING = 0, ANSWERED = 1, EXPIRED = 2, SUPERSEDED = 3;
+
+        final ChatTopic to;
+        final long started = System.nanoTime();
+        final AtomicInteger state = new AtomicInteger(RUNNING);
+        final List<Object[]> sends = new ArrayList<>();  // {delay ms, Runnable}, worker thread only
+        final AtomicInteger unsent = new AtomicInteger();
+        volatile Future<?> work;
+        final ScheduledFuture<?> deadline;
+
+        // The deadline is armed before the reply is published, since a newer query may supersede it at once
+        Reply(ChatTopic to) {
+            this.to = to;
+            this.deadline = scheduler.schedule(this::expire, deadlineMs, TimeUnit.MILLISECONDS);
+        }
+
+        void later(long delayMs, Runnable send) { sends.add(new Object[] { delayMs, send }); }
+
+        boolean isCurrent() { return inFlight.get(to) == this; }
+
+        void answered() {
+            if (!state.compareAndSet(RUNNING, ANSWERED)) return;
+            deadline.cancel(false);
+            if (sends.isEmpty()) inFlight.remove(to, this);
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            unsent.set(sends.size());
+            for (Object[] s : sends) {
+                Runnable send = (Runnable) s[1];
+                scheduler.schedule(() -> {
+                    if (isCurrent()) send.run();
+                    if (unsent.decrementAndGet() == 0) inFlight.remove(to, this);
+                }, Math.max(0, (Long) s[0] - elapsed), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void expire() {
+            if (!state.compareAndSet(RUNNING, EXPIRED)) return;
+            cancelWork();
+            if (inFlight.remove(to, this)) {
+                chat.sendFromSeller(to, NAME, "⏱️ That one is taking me too long. Could you make it a bit more specific?");
+            }
+        }
+
+        void supersede() {
+            if (state.compareAndSet(RUNNING, SUPERSEDED)) {
+                deadline.cancel(false);
+                cancelWork();
+            }
+        }
+
+        // Interrupts the worker; search itself is not interruptible, but its answer is dropped by the state check
+        private void cancelWork() {
+            Future<?> w = work;
+            if (w != null) w.cancel(true);
+        }
+    }
+
+    public void respond(String query) { respond(query, ChatTopic.BUYER); }
+
+    /**
+     * Answers on the given buyer conversation. Returns at once: routing and
+     * search run on a worker thread, never on the caller's (often the EDT).
+     */
+    public void respond(String query, ChatTopic to) {
+        Reply reply = new Reply(to);
+        Reply previous = inFlight.put(to, reply);
+        if (previous != null) previous.supersede();
+        try {
+            reply.work = workers.submit(() -> {
+                answer(query, reply);
+                reply.answered();
+            });
+        } catch (RejectedExecutionException e) {
+            reply.deadline.cancel(false);  // shutting down
+            inFlight.remove(to, reply);
+        }
+    }
+
+    private void answer(String query, Reply reply) {
+        ChatTopic to = reply.to;
+        IntentRouter.Route route = IntentRouter.route(query);
+
+        // ===== AUTO-RESPONSES FOR COMMON QUESTIONS =====
+        
+        // Greetings
+        if (route.intent == IntentRouter.Intent.GREETING) {
+            reply.later(600, () -> 
+                chat.sendFromSeller(to, NAME, 
+                    "Hello! 👋 Welcome to FoodChat! What can I help you find today? Try: 'nasi goreng', 'korean food', 'special offer', or 'cheap food'"));
+            return;
+        }
+
+        // Help / menu requests
+        if (route.intent == IntentRouter.Intent.HELP) {
+            reply.later(600, () -> 
+                chat.sendFromSeller(to, NAME, 
+                    "I can help you find:\n• 🍛 Padang food\n• 🍜 Korean dishes\n• 🍗 Fast food\n• 🥗 Healthy options\n• 🍚 Warteg/local food\n• 🍰 Desserts\n• 🥤 Drinks\n\nJust tell me what you're craving! Or ask for 'special offer' for deals!"));
+            return;
+        }
+
+        // Thank you
+        if (route.intent == IntentRouter.Intent.THANKS) {
+            reply.later(500, () -> 
+                chat.sendFromSeller(to, NAME, "You're welcome! 😊 Anything else?"));
+            return;
+        }
+
+        // Special offers / promos
+        if (route.intent == IntentRouter.Intent.OFFER) {
+            List<SpecialOffer> offers = store.getAllOffers();
+            reply.later(800, () -> chat.sendFromSeller(to, NAME, "🎁 Here are today's special offers:"));
+            reply.later(1200, () -> {
+                for (SpecialOffer offer : offers) chat.sendSpecialOffer(to, offer);
+            });
+            return;
+        }
+
+        // Seller status / availability check
+        if (route.intent == IntentRouter.Intent.STATUS) {
+            reply.later(600, () -> {
+                StringBuilder sb = new StringBuilder("📊 Seller Status:\n");
+                for (Seller s : store.getSellers()) {
+                    String status = s.isBusy() ? "🔴 Busy (~" + s.getEstimatedWaitTime() + " min wait)" 
+                                               : "🟢 Open (~" + s.getEstimatedWaitTime() + " min)";
+                    sb.append("• ").append(s.getName()).append(": ").append(status).append("\n");
+                }
+                chat.sendFromSeller(to, NAME, sb.toString());
+            });
+            return;
+        }
+
+        // Recommendation request (no specific food mentioned)
+        if (route.intent == IntentRouter.Intent.RECOMMEND) {
+            reply.later(700, () -> {
+                chat.sendFromSeller(to, NAME, 
+                    "🤔 What are you in the mood for?\n• Spicy (pedas)\n• Sweet (manis)\n• Healthy (sehat)\n• Fast/Quick (cepat)\n• Cheap (murah)\n\nOr tell me a category: Korean, Padang, Warteg, etc.");
+            });
+            return;
+        }
+
+        // Popular items shortcut
+        if (route.intent == IntentRouter.Intent.POPULAR) {
+            List<SellerItem> results = store.search("", null, true, null);
+            reply.later(700, () -> chat.sendRecommendations(to, results.stream().limit(5).collect(Collectors.toList()),
+                "⭐ Top-rated items across all sellers:"));
+            return;
+        }
+
+        // ===== SEARCH WITH FILTERS =====
+
+        // Parse price constraint
+        PriceRange price = route.price;
+        final Integer maxPrice = price.max;
+
+        List<SellerItem> results = store.search(query, price.min, maxPrice,
+            route.byRating ? true : null, route.bySpeed ? true : null);
+
+        if (!results.isEmpty()) {
+            reply.later(800, () -> {
+                String msg = "Here are" + (price.isBounded() ? " options " + price.describe() : " some recommendations") + ":";
+                chat.sendRecommendations(to, results, msg);
+            });
+        } else {
+            // No results - give helpful suggestions
+            reply.later(700, () -> {
+                String suggestion;
+                if (maxPrice != null && maxPrice < 10000) {
+                    suggestion = "Hmm, not much under Rp " + String.format("%,d", maxPrice) + 
+                        ". Try 'cheap food' or increase your budget to 15k-20k!";
+                } else {
+                    suggestion = "I couldn't find that. Try:\n• Specific foods: 'nasi goreng', 'burger', 'salad'\n" +
+                        "• Categories: 'korean', 'padang', 'healthy'\n• Taste: 'spicy', 'sweet', 'savory'\n" +
+                        "• Or just ask: 'what's popular?'";
+                }
+                chat.sendFromSeller(to, NAME, suggestion);
+            });
+        }
+    }
+}
+
+/**
+ * One buyer talking to the engine: their own conversation topic, cart, and
+ * orders. The session keeps a short transcript of its conversation and an
+ * estimate of how much heap that, the cart, and the orders take.
+ */
+class BuyerSession implements ChatListener {
+    static final int MAX_TRANSCRIPT = 50;
+
+    private final String id;
+    private final String buyerName;
+    private final ChatTopic topic;
+    private final ShoppingCart cart = new ShoppingCart();
+    private final List<Order> orders = new CopyOnWriteArrayList<>();
+    private final ArrayDeque<ChatMessage> transcript = new ArrayDeque<>();  // guarded by itself
+    private long transcriptBytes;                                           // guarded by transcript
+    private volatile long lastActive;
+
+    BuyerSession(String id, String buyerName, long now) {
+        this.id = id;
+        this.buyerName = buyerName;
+        this.topic = ChatTopic.session(id);
+        this.lastActive = now;
+    }
+
+    public String getId() { return id; }
+    public String getBuyerName() { return buyerName; }
+    public ChatTopic getTopic() { return topic; }
+    public ShoppingCart getCart() { return cart; }
+    public List<Order> getOrders() { return new ArrayList<>(orders); }
+    public long getLastActive() { return lastActive; }
+    void touch(long now) { lastActive = now; }
+    void addOrder(Order order) { orders.add(order); }
+
+    @Override
+    public void onMessageReceived(ChatMessage m) {
+        synchronized (transcript) {
+            transcript.addLast(m);
+            transcriptBytes += estimateBytes(m);
+            while (transcript.size() > MAX_TRANSCRIPT) transcriptBytes -= estimateBytes(transcript.removeFirst());
+        }
+    }
+
+    /** The last MAX_TRANSCRIPT messages of this conversation, oldest first. */
+    public List<ChatMessage> getTranscript() {
+        synchronized (transcript) { return new ArrayList<>(transcript); }
+    }
+
+    /** Rough heap held by this session: transcript, cart lines and orders. */
+    public long getEstimatedBytes() {
+        long bytes;
+        synchronized (transcript) { bytes = transcriptBytes; }
+        return 160 + bytes + 48L * cart.getItems().size() + 256L * orders.size();
+    }
+
+    // Object headers and fields, plus two bytes per char of text; shared catalog objects are not counted
+    private static long estimateBytes(ChatMessage m) {
+        long bytes = 96 + 2L * (m.message.length() + m.senderName.length());
+        if (m.sellerItems != null) bytes += 16 + 24L * m.sellerItems.size();
+        return bytes;
+    }
+}
+
+/**
+ * Concurrent map of buyer sessions on top of one {@link FoodChatEngine}, so a
+ * single process can serve many customers. Sessions idle longer than the
+ * timeout are closed by {@link #expireIdle()}, which {@link #startExpiry}
+ * runs periodically.
+ */
+class SessionManager {
+    private final FoodChatEngine engine;
+    private final long idleTimeoutMs;
+    private final Map<String, BuyerSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    public SessionManager(FoodChatEngine engine, long idleTimeoutMs) {
+        if (idleTimeoutMs <= 0) throw new IllegalArgumentException("Idle timeout must be positive: " + idleTimeoutMs);
+        this.engine = engine;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public BuyerSession open(String buyerName) {
+        BuyerSession session = new BuyerSession("S" + nextId.incrementAndGet(), buyerName, System.currentTimeMillis());
+        engine.chat().subscribe(session.getTopic(), session);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    /** The session, marked active; null if it never existed or has expired. */
+    public BuyerSession get(String sessionId) {
+        BuyerSession session = sessions.get(sessionId);
+        if (session != null) session.touch(System.currentTimeMillis());
+        return session;
+    }
+
+    public void say(String sessionId, String text) {
+        BuyerSession session = require(sessionId);
+        engine.sendBuyerMessage(session.getTopic(), session.getBuyerName(), text);
+    }
+
+    public Order checkout(String sessionId, String phone, String address, String notes, Seller seller) {
+        BuyerSession session = require(sessionId);
+        Order order = engine.placeOrder(session.getTopic(), session.getBuyerName(), phone, address, notes,
+            session.getCart(), seller);
+        session.addOrder(order);
+        return order;
+    }
+
+    public void close(String sessionId) {
+        BuyerSession session = sessions.remove(sessionId);
+        if (session == null) return;
+        engine.chat().unsubscribe(session.getTopic(), session);
+        engine.chat().forgetConversation(session.getTopic());
+    }
+
+    /** Closes every session idle past the timeout; returns how many. */
+    public int expireIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMs;
+        int closed = 0;
+        for (BuyerSession session : sessions.values()) {
+            if (session.getLastActive() < cutoff) {
+                close(session.getId());
+                closed++;
+            }
+        }
+        expired.addAndGet(closed);
+        return closed;
+    }
+
+    /** Runs {@link #expireIdle()} on the engine's scheduler every half timeout (at most once a minute). */
+    public void startExpiry() {
+        long period = Math.min(60_000, Math.max(1, idleTimeoutMs / 2));
+        engine.scheduler().scheduleWithFixedDelay(this::expireIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public int size() { return sessions.size(); }
+    public long getExpiredCount() { return expired.get(); }
+
+    public long getEstimatedBytes() {
+        long total = 0;
+        for (BuyerSession session : sessions.values()) total += session.getEstimatedBytes();
+        return total;
+    }
+
+    private BuyerSession require(String sessionId) {
+        BuyerSession session = get(sessionId);
+        if (session == null) throw new IllegalArgumentException("No such session: " + sessionId);
+        return session;
+    }
+}
+
+/**
+ * Line-based console client for {@code --headless}: each line is a buyer
+ * message, and bot and seller replies are printed as they arrive.
+ */
+class HeadlessConsole implements ChatListener {
+    static final long SESSION_IDLE_MS = 30 * 60_000;
+
+    private final FoodChatEngine engine;
+
+    HeadlessConsole(FoodChatEngine engine) {
+        this.engine = engine;
+    }
+
+    /** Runs the console; with a port of 0 or more, also serves remote clients on it through a {@link ChatGateway}. */
+    public static void run(int port) throws java.io.IOException {
+        long started = System.nanoTime();
+        FoodChatEngine engine = new FoodChatEngine();
+        HeadlessConsole console = new HeadlessConsole(engine);
+        engine.chat().subscribe(ChatTopic.BUYER, console);
+        engine.chat().subscribe(ChatTopic.SYSTEM, console);
+        engine.start(0);
+        ChatGateway gateway = null;
+        if (port >= 0) {
+            SessionManager sessions = new SessionManager(engine, SESSION_IDLE_MS);
+            sessions.startExpiry();
+            gateway = ChatGateway.start(engine, sessions, port);
+            System.out.println("Gateway listening on 127.0.0.1:" + gateway.getPort());
+        }
+        System.out.printf("FoodChat engine ready in %d ms with %d sellers. Type a message, /busy <seller>, or /quit.%n",
+            (System.nanoTime() - started) / 1_000_000, engine.store().getSellers().size());
+
+        java.io.BufferedReader in = new java.io.BufferedReader(
+            new java.io.InputStreamReader(System.in, java.nio.charset.StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            if (line.equals("/quit")) break;
+            if (line.startsWith("/busy ")) {
+                String name = line.substring(6).trim();
+                Seller seller = engine.store().getSellers().stream()
+                    .filter(x -> x.getName().equalsIgnoreCase(name)).findFirst().orElse(null);
+                if (seller == null) System.out.println("No seller named " + name);
+                else engine.setSellerBusy(seller, !seller.isBusy());
+                continue;
+            }
+            engine.sendBuyerMessage(line);
+        }
+        if (gateway != null) gateway.close();
+        engine.shutdown();
+    }
+
+    @Override
+    public void onMessageReceived(ChatMessage m) {
+        if (m.senderType.equals("BUYER")) return;  // the user's own line is already on screen
+        StringBuilder sb = new StringBuilder("[").append(m.getFormattedTime()).append("] ")
+            .append(m.senderName).append(": ").append(m.message);
+        if (m.sellerItems != null) {
+            for (SellerItem si : m.sellerItems) {
+                sb.append(String.format("%n  • %s — %s, Rp %,d", si.item.getName(), si.seller.getName(), si.item.getPrice()));
+            }
+        }
+        if (m.specialOffer != null) {
+            sb.append(String.format("%n  %s: Rp %,d (save %d%%)", m.specialOffer.getTitle(),
+                m.specialOffer.getOfferPrice(), m.specialOffer.getDiscountPercent()));
+        }
+        System.out.println(sb);
+    }
+}
+
+// ===============================
+// NETWORK GATEWAY
+// ===============================
+
+/**
+ * Serves the engine to remote buyer and seller clients over TCP, one selector
+ * thread for every connection.
+ *
+ * Every frame is a 4-byte big-endian length followed by that many bytes of
+ * UTF-8: tab-separated fields, the first one naming the command. Tabs and
+ * line breaks inside a field travel as spaces.
+ *
+ * <pre>
+ * client                                  server
+ * BUYER  name                          -> SESSION id
+ * SELLER sellerName                    -> OK
+ * SAY    text               (buyer)    -> (bot and seller replies arrive as MSG)
+ * SAY    conversation text  (seller)
+ * SEARCH query                         -> RESULTS n {seller itemId name price}*
+ * ADD    seller itemId qty  (buyer)    -> CART lines total
+ * CHECKOUT phone address notes (buyer) -> ORDER orderId seller minutes
+ * STATUS orderId status     (seller)   -> OK
+ *                                         MSG conversation senderType senderName type text   (pushed)
+ *                                         ERR reason
+ * </pre>
+ *
+ * Reads land in one direct buffer per connection and frames are decoded
+ * where they lie. A chat message pushed to many connections is encoded once
+ * and each connection queues a read-only view of the same bytes, flushed
+ * with gathering writes. A client that lets more than
+ * {@link #MAX_QUEUED_BYTES} pile up unread is disconnected.
+ *
+ * CHECKOUT places the order on the engine's workers, since that writes to
+ * disk; the connection reads no further frames until it is answered.
+ * A seller may only SAY into a buyer conversation that has opened it.
+ */
+class ChatGateway implements AutoCloseable {
+    static final int MAX_FRAME = 64 * 1024;
+    static final int MAX_QUEUED_BYTES = 1 << 20;
+    static final int MAX_RESULTS = 20;
+    private static final int READ_BUFFER = 4 * 1024;
+    private static final int WRITE_BATCH = 64;
+
+    private final FoodChatEngine engine;
+    private final SessionManager sessions;
+    private final java.nio.channels.Selector selector;
+    private final java.nio.channels.ServerSocketChannel server;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> resumed = new ConcurrentLinkedQueue<>();  // answered checkouts, to read on from
+    // Frames of recently pushed messages, by identity. A dispatcher batch holds at most
+    // MAX_BATCH messages and reaches every subscriber before the next one starts.
+    private final ChatMessage[] framedMessages = new ChatMessage[ChatBridge.MAX_BATCH];
+    private final java.nio.ByteBuffer[] frames = new java.nio.ByteBuffer[ChatBridge.MAX_BATCH];
+    private int nextFrame;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Thread loop;
+    private volatile boolean running = true;
+
+    private ChatGateway(FoodChatEngine engine, SessionManager sessions, int port) throws java.io.IOException {
+        this.engine = engine;
+        this.sessions = sessions;
+        this.selector = java.nio.channels.Selector.open();
+        this.server = java.nio.channels.ServerSocketChannel.open();
+        server.bind(new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, java.nio.channels.SelectionKey.OP_ACCEPT);
+        this.loop = new Thread(this::run, "foodchat-gateway");
+        loop.setDaemon(true);
+    }
+
+    /** Listens on 127.0.0.1:port (0 picks a free port) and starts serving. */
+    public static ChatGateway start(FoodChatEngine engine, SessionManager sessions, int port) throws java.io.IOException {
+        ChatGateway gateway = new ChatGateway(engine, sessions, port);
+        gateway.loop.start();
+        return gateway;
+    }
+
+    public int getPort() { return server.socket().getLocalPort(); }
+    public int getConnectionCount() { return connections.get(); }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                Connection c;
+                while ((c = resumed.poll()) != null) c.resume();
+                while ((c = pendingWrites.poll()) != null) c.flush();  // replies queued while handling the last round, or pushes that woke us
+                selector.select();
+                Iterator<java.nio.channels.SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    java.nio.channels.SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    c = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) c.read();
+                        if (key.isValid() && key.isWritable()) c.flush();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();  // drop this client, keep serving the rest
+                        c.close();
+                    }
+                }
+            }
+        } catch (java.io.IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            for (java.nio.channels.SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+            }
+            try { server.close(); selector.close(); } catch (java.io.IOException ignored) {}
+        }
+    }
+
+    private void accept() throws java.io.IOException {
+        java.nio.channels.SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            Connection c = new Connection(ch);
+            c.key = ch.register(selector, java.nio.channels.SelectionKey.OP_READ, c);
+            connections.incrementAndGet();
+        }
+    }
+
+    /** One frame from fields; tabs and line breaks inside a field become spaces. */
+    static java.nio.ByteBuffer encode(String... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) sb.append('\t');
+            String f = fields[i] == null ? "" : fields[i];
+            for (int j = 0; j < f.length(); j++) {
+                char ch = f.charAt(j);
+                sb.append(ch == '\t' || ch == '\n' || ch == '\r' ? ' ' : ch);
+            }
+        }
+        byte[] payload = sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        if (payload.length > MAX_FRAME) throw new IllegalArgumentException("Frame too large: " + payload.length);
+        java.nio.ByteBuffer frame = java.nio.ByteBuffer.allocate(4 + payload.length);
+        frame.putInt(payload.length).put(payload).flip();
+        return frame;
+    }
+
+    static String[] decode(java.nio.ByteBuffer payload) {
+        return java.nio.charset.StandardCharsets.UTF_8.decode(payload).toString().split("\t", -1);
+    }
 
-        SellerItem burger = new SellerItem(fast, fast.getMenu().get(0));
-        SellerItem fries = new SellerItem(fast, fast.getMenu().get(3));
-        fast.getPromotions().add(new SpecialOffer("🍔 Combo Deal",
-            "Beef Burger + French Fries", List.of(burger, fries), 15));
-        sellers.add(fast);
+    private java.nio.ByteBuffer frameOf(ChatMessage m) {
+        synchronized (frames) {
+            for (int i = 0, k = nextFrame; i < frames.length; i++) {  // newest first
+                k = (k == 0 ? frames.length : k) - 1;
+                if (framedMessages[k] == m) return frames[k].duplicate();
+            }
+        }
+        String conversation = m.topics.isEmpty() ? "" : m.topics.get(0).toString();
+        String text = m.message;
+        if (m.sellerItems != null) {
+            StringBuilder sb = new StringBuilder(text);
+            for (SellerItem si : m.sellerItems) {
+                sb.append(" | ").append(si.item.getName()).append(" (").append(si.seller.getName())
+                  .append(", Rp ").append(si.item.getPrice()).append(')');
+            }
+            text = sb.toString();
+        }
+        if (text.length() > MAX_FRAME / 4) text = text.substring(0, MAX_FRAME / 4);  // keep any UTF-8 encoding under MAX_FRAME
+        java.nio.ByteBuffer frame = encode("MSG", conversation, m.senderType, m.senderName, m.type.name(), text)
+            .asReadOnlyBuffer();
+        synchronized (frames) {
+            framedMessages[nextFrame] = m;
+            frames[nextFrame] = frame;
+            nextFrame = (nextFrame + 1) % frames.length;
+        }
+        return frame.duplicate();
+    }
 
-        // ---- HEALTHY ----
-        Seller healthy = new Seller("S004", "Green Bowl & Salad", FoodCategory.HEALTHY, 4.8, 1.5, -6.294563719538023, 107.1664932375457);
-        healthy.getMenu().add(new MenuItem("S004-1", "Quinoa Buddha Bowl", 35000, 4.9, 15, "food",
-            "healthy", "vegetarian", "quinoa", "vegetables", "fresh", "organic"));
-        healthy.getMenu().add(new MenuItem("S004-2", "Avocado Toast", 28000, 4.7, 8, "food",
-            "healthy", "vegetarian", "bread", "avocado", "fresh", "breakfast"));
-        healthy.getMenu().add(new MenuItem("S004-3", "Greek Salad", 25000, 4.6, 10, "food",
-            "healthy", "vegetarian", "salad", "fresh", "vegetables", "cheese"));
-        healthy.getMenu().add(new MenuItem("S004-4", "Smoothie Bowl", 32000, 4.8, 10, "food",
-            "healthy", "sweet", "fruit", "fresh", "cold", "vegetarian"));
+    private final class Connection implements ChatListener {
+        private final java.nio.channels.SocketChannel channel;
+        private java.nio.ByteBuffer in = java.nio.ByteBuffer.allocateDirect(READ_BUFFER);
+        private final Queue<java.nio.ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final java.nio.ByteBuffer[] batch = new java.nio.ByteBuffer[WRITE_BATCH];
+        private final List<ChatTopic> topics = new ArrayList<>();
+        java.nio.channels.SelectionKey key;
+        private BuyerSession session;
+        private Seller seller;
+        private boolean awaiting;  // a checkout is running on a worker; selector thread only
+        private volatile boolean closed;
+
+        Connection(java.nio.channels.SocketChannel channel) {
+            this.channel = channel;
+        }
 
-        sellers.add(healthy);
+        @Override
+        public void onMessageReceived(ChatMessage m) {
+            send(frameOf(m));
+        }
 
-        // ---- WARTEG ----
-        Seller warteg = new Seller("S005", "Warteg Bahagia", FoodCategory.WARTEG, 4.3, 0.2, -6.281666946346757, 107.16368150905166);
-        warteg.getMenu().add(new MenuItem("S005-1", "Nasi Goreng", 15000, 4.5, 20, "food",
-            "savory", "fried", "rice", "indonesian", "nasi", "cheap", "egg"));
-        warteg.getMenu().add(new MenuItem("S005-2", "Nasi Goreng Seafood", 18000, 4.6, 25, "food",
-            "savory", "seafood", "fried", "rice", "indonesian", "nasi"));
-        warteg.getMenu().add(new MenuItem("S005-3", "Mie Goreng", 13000, 4.4, 18, "food",
-            "savory", "fried", "noodle", "indonesian", "mie", "cheap"));
-        warteg.getMenu().add(new MenuItem("S005-4", "Soto Ayam", 15000, 4.5, 20, "food",
-            "savory", "chicken", "soup", "indonesian", "hot"));
-        warteg.getMenu().add(new MenuItem("S005-5", "Tempe Orek", 8000, 4.2, 10, "food",
-            "savory", "vegetarian", "indonesian", "cheap", "tempeh"));
+        /** Queues a frame from any thread; the selector thread writes it. */
+        void send(java.nio.ByteBuffer frame) {
+            if (closed) return;
+            out.add(frame);
+            if (queuedBytes.addAndGet(frame.remaining()) > MAX_QUEUED_BYTES) closed = true;  // slow reader, flush() drops it
+            if (flushScheduled.compareAndSet(false, true)) {
+                pendingWrites.add(this);
+                if (Thread.currentThread() != loop) selector.wakeup();
+            }
+        }
 
-        SellerItem ng = new SellerItem(warteg, warteg.getMenu().get(0));
-        SellerItem soto = new SellerItem(warteg, warteg.getMenu().get(3));
-        warteg.getPromotions().add(new SpecialOffer("🍚 Hemat Combo",
-            "Nasi Goreng + Soto Ayam", List.of(ng, soto), 10));
-        sellers.add(warteg);
+        void read() {
+            try {
+                if (channel.read(in) < 0) {
+                    close();
+                    return;
+                }
+            } catch (java.io.IOException e) {
+                close();
+                return;
+            }
+            handleFrames();
+        }
 
-        // ---- DESSERT ----
-        Seller dessert = new Seller("S006", "Sweet Dessert House", FoodCategory.DESSERT, 4.9, 1.5, -6.297940068328937, 107.16611183569414);
-        dessert.getMenu().add(new MenuItem("S006-1", "Chocolate Lava Cake", 35000, 4.9, 20, "dessert",
-            "sweet", "chocolate", "cake", "warm", "rich"));
-        dessert.getMenu().add(new MenuItem("S006-2", "Tiramisu", 30000, 4.8, 15, "dessert",
-            "sweet", "coffee", "cake", "italian", "creamy", "cold"));
-        dessert.getMenu().add(new MenuItem("S006-3", "Strawberry Cheesecake", 32000, 4.9, 15, "dessert",
-            "sweet", "fruit", "strawberry", "creamy", "cold"));
-        dessert.getMenu().add(new MenuItem("S006-4", "Ice Cream Sundae", 25000, 4.7, 5, "dessert",
-            "sweet", "cold", "ice cream", "chocolate", "vanilla", "fast"));
+        // Handles every complete frame in the buffer, stopping early while a checkout is out
+        private void handleFrames() {
+            in.flip();
+            while (!awaiting && in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length <= 0 || length > MAX_FRAME) {
+                    send(encode("ERR", "bad frame length " + length));
+                    closed = true;
+                    break;
+                }
+                if (in.remaining() < 4 + length) {
+                    if (in.capacity() < 4 + length) {  // frame bigger than the buffer: grow it once for this connection
+                        java.nio.ByteBuffer bigger = java.nio.ByteBuffer.allocateDirect(4 + length);
+                        bigger.put(in);
+                        in = bigger;
+                        return;
+                    }
+                    break;
+                }
+                int start = in.position() + 4;
+                java.nio.ByteBuffer payload = in.duplicate();
+                payload.position(start).limit(start + length);
+                in.position(start + length);
+                handle(decode(payload));
+            }
+            in.compact();
+            if (closed) flush();
+            else if (awaiting) key.interestOps(key.interestOps() & ~java.nio.channels.SelectionKey.OP_READ);
+        }
 
-        sellers.add(dessert);
+        // Back on the selector thread once a checkout has been answered
+        void resume() {
+            awaiting = false;
+            if (!channel.isOpen()) return;
+            key.interestOps(key.interestOps() | java.nio.channels.SelectionKey.OP_READ);
+            handleFrames();
+        }
 
-        // ---- DRINKS ----
-        Seller drinks = new Seller("S007", "Warung Es Teh Indonesia", FoodCategory.DRINKS, 4.7, 0.5, -6.297843680583663, 107.16217405179022);
-        drinks.getMenu().add(new MenuItem("S007-1", "Es Teh Manis", 5000, 4.7, 5, "drink",
-            "sweet", "ice", "cold", "tea", "indonesian", "cheap", "refreshing"));
-        drinks.getMenu().add(new MenuItem("S007-2", "Es Jeruk", 8000, 4.6, 5, "drink",
-            "sweet", "sour", "ice", "cold", "citrus", "refreshing", "cheap"));
-        drinks.getMenu().add(new MenuItem("S007-3", "Es Kelapa Muda", 12000, 4.8, 5, "drink",
-            "sweet", "ice", "cold", "coconut", "refreshing", "indonesian"));
-        drinks.getMenu().add(new MenuItem("S007-4", "Thai Tea", 12000, 4.7, 5, "drink",
-            "sweet", "ice", "cold", "tea", "milk", "creamy"));
-        drinks.getMenu().add(new MenuItem("S007-5", "Es Kepal Milo", 15000, 4.8, 8, "drink",
-            "sweet", "ice", "cold", "chocolate", "milo", "creamy"));
+        void flush() {
+            if (!channel.isOpen()) return;
+            if (closed && (out.isEmpty() || queuedBytes.get() > MAX_QUEUED_BYTES)) {
+                close();
+                return;
+            }
+            try {
+                while (true) {
+                    int n = 0;
+                    for (java.nio.ByteBuffer b : out) {
+                        if (n == WRITE_BATCH) break;
+                        batch[n++] = b;
+                    }
+                    if (n == 0) break;
+                    long written = channel.write(batch, 0, n);
+                    queuedBytes.addAndGet(-written);
+                    while (!out.isEmpty() && !out.peek().hasRemaining()) out.poll();
+                    if (batch[n - 1].hasRemaining()) break;  // socket buffer full
+                }
+                Arrays.fill(batch, null);
+            } catch (java.io.IOException e) {
+                close();
+                return;
+            }
+            int reading = awaiting ? 0 : java.nio.channels.SelectionKey.OP_READ;
+            if (!out.isEmpty()) {
+                key.interestOps(reading | java.nio.channels.SelectionKey.OP_WRITE);
+                return;
+            }
+            key.interestOps(reading);
+            if (closed) {
+                close();
+                return;
+            }
+            flushScheduled.set(false);
+            if (!out.isEmpty() && flushScheduled.compareAndSet(false, true)) pendingWrites.add(this);  // raced with send()
+        }
 
-        SellerItem teh = new SellerItem(drinks, drinks.getMenu().get(0));
-        SellerItem kelapa = new SellerItem(drinks, drinks.getMenu().get(2));
-        drinks.getPromotions().add(new SpecialOffer("🥤 Refreshing Duo",
-            "Es Teh Manis + Es Kelapa Muda", List.of(teh, kelapa), 15));
-        sellers.add(drinks);
-    }
+        void close() {
+            closed = true;
+            if (!channel.isOpen()) return;
+            for (ChatTopic t : topics) engine.chat().unsubscribe(t, this);
+            if (session != null) sessions.close(session.getId());
+            key.cancel();
+            try { channel.close(); } catch (java.io.IOException ignored) {}
+            connections.decrementAndGet();
+        }
 
-    private void initSynonyms() {
-        synonyms.put("manis", "sweet"); synonyms.put("pedas", "spicy");
-        synonyms.put("asin", "salty"); synonyms.put("gurih", "savory");
-        synonyms.put("asam", "sour"); synonyms.put("es", "cold");
-        synonyms.put("dingin", "cold"); synonyms.put("panas", "hot");
-        synonyms.put("makanan", "food"); synonyms.put("minuman", "drink");
-        synonyms.put("nasi", "rice"); synonyms.put("mie", "noodle");
-        synonyms.put("ayam", "chicken"); synonyms.put("sapi", "beef");
-        synonyms.put("ikan", "fish"); synonyms.put("sayur", "vegetables");
-        synonyms.put("buah", "fruit"); synonyms.put("korea", "korean");
-        synonyms.put("indonesia", "indonesian"); synonyms.put("barat", "western");
-        synonyms.put("murah", "cheap"); synonyms.put("sehat", "healthy");
-        synonyms.put("cepat", "fast"); synonyms.put("goreng", "fried");
-        synonyms.put("bakar", "grilled"); synonyms.put("sup", "soup");
-    }
+        private void listen(ChatTopic topic) {
+            topics.add(topic);
+            engine.chat().subscribe(topic, this);
+        }
 
-    public List<SellerItem> search(String query, Integer maxPrice, Boolean byRating, Boolean bySpeed) {
-        Set<String> tags = parseQuery(query.toLowerCase());
-        List<SellerItem> results = new ArrayList<>();
+        private void handle(String[] f) {
+            try {
+                reply(dispatch(f));
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                send(encode("ERR", e.getMessage()));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                send(encode("ERR", "internal error"));
+                closed = true;
+            }
+        }
 
-        for (Seller s : sellers) {
-            for (MenuItem m : s.getMenu()) {
-                if (tags.isEmpty() || m.hasAnyTag(tags)) {
-                    if (maxPrice != null && m.getPrice() > maxPrice) continue;
-                    results.add(new SellerItem(s, m));
+        private void reply(String reply) {
+            if (reply != null) send(encode(reply.split("\t", -1)));
+        }
+
+        private String dispatch(String[] f) {
+            switch (f[0]) {
+                case "BUYER": {
+                    if (session != null || seller != null) throw new IllegalStateException("Already signed in");
+                    session = sessions.open(field(f, 1));
+                    listen(session.getTopic());
+                    listen(ChatTopic.SYSTEM);
+                    return "SESSION\t" + session.getId();
+                }
+                case "SELLER": {
+                    if (session != null || seller != null) throw new IllegalStateException("Already signed in");
+                    Seller s = engine.store().findSeller(field(f, 1));
+                    if (s == null) throw new IllegalArgumentException("No seller named " + f[1]);
+                    seller = s;
+                    listen(ChatTopic.seller(s.getName()));
+                    return "OK";
                 }
+                case "SAY":
+                    if (seller != null) {
+                        ChatTopic conversation = ChatTopic.parse(field(f, 1));
+                        if (!engine.chat().getOpenConversations(conversation).contains(seller.getName())) {
+                            throw new IllegalArgumentException("No conversation " + conversation + " with " + seller.getName());
+                        }
+                        engine.chat().sendFromSeller(conversation, seller.getName(), field(f, 2));
+                    } else {
+                        sessions.say(buyer().getId(), field(f, 1));
+                    }
+                    return null;
+                case "SEARCH":
+                    return results(field(f, 1));
+                case "ADD": {
+                    BuyerSession b = buyer();
+                    SellerItem si = engine.store().findItem(field(f, 1), field(f, 2));
+                    if (si == null) throw new IllegalArgumentException("No item " + f[2] + " at " + f[1]);
+                    b.getCart().addItem(si, Math.max(1, number(field(f, 3))));
+                    return "CART\t" + b.getCart().getItems().size() + "\t" + b.getCart().getTotal();
+                }
+                case "CHECKOUT": {
+                    BuyerSession b = buyer();
+                    Seller s = b.getCart().getPrimarySeller();
+                    if (s == null) throw new IllegalStateException("Cart is empty");
+                    String phone = field(f, 1), address = field(f, 2), notes = f.length > 3 ? f[3] : "";
+                    awaiting = true;
+                    engine.workers().execute(() -> {
+                        try {
+                            Order order = sessions.checkout(b.getId(), phone, address, notes, s);
+                            reply("ORDER\t" + order.getOrderId() + "\t" + s.getName() + "\t" + order.getEstimatedMinutes());
+                        } catch (IllegalArgumentException | IllegalStateException e) {
+                            send(encode("ERR", e.getMessage()));
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            send(encode("ERR", "internal error"));
+                            closed = true;
+                        } finally {
+                            resumed.add(this);
+                            selector.wakeup();
+                        }
+                    });
+                    return null;
+                }
+                case "STATUS": {
+                    if (seller == null) throw new IllegalStateException("Sign in as a seller first");
+                    Order order = null;
+                    for (Order o : engine.desk(seller).getActiveOrders()) if (o.getOrderId().equals(field(f, 1))) order = o;
+                    if (order == null) throw new IllegalArgumentException("No open order " + f[1]);
+                    OrderStatus target = OrderStatus.valueOf(field(f, 2));
+                    OrderStatus from = order.getStatus();
+                    if (!engine.updateOrderStatus(order, target)) {
+                        throw new IllegalStateException(order.getOrderId() + " cannot go from " + from + " to " + target);
+                    }
+                    return "OK";
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown command " + f[0]);
             }
         }
 
-        if (byRating != null && byRating) {
-            results.sort((a, b) -> Double.compare(b.item.getRating(), a.item.getRating()));
-        } else if (bySpeed != null && bySpeed) {
-            results.sort(Comparator.comparingInt(a -> a.item.getCookTimeMinutes()));
-        } else {
-            results.sort((a, b) -> Integer.compare(
-                b.item.getMatchScore(tags), a.item.getMatchScore(tags)));
+        private BuyerSession buyer() {
+            if (session == null) throw new IllegalStateException("Sign in as a buyer first");
+            if (sessions.get(session.getId()) == null) {
+                closed = true;
+                throw new IllegalStateException("Session expired");
+            }
+            return session;
         }
 
-        return results.stream().limit(8).collect(Collectors.toList());
-    }
-
-    private Set<String> parseQuery(String query) {
-        Set<String> tags = new HashSet<>();
-        for (String word : query.split("[\\s,+&/]+")) {
-            word = word.trim();
-            tags.add(synonyms.getOrDefault(word, word));
+        private String results(String query) {
+            IntentRouter.Route route = IntentRouter.route(query);
+            PriceRange price = route.price != null ? route.price : PriceRange.parse(query.toLowerCase());
+            List<SellerItem> hits = engine.store().search(query, price.min, price.max,
+                route.byRating ? true : null, route.bySpeed ? true : null);
+            StringBuilder sb = new StringBuilder("RESULTS\t").append(Math.min(hits.size(), MAX_RESULTS));
+            for (SellerItem si : hits.subList(0, Math.min(hits.size(), MAX_RESULTS))) {
+                sb.append('\t').append(si.seller.getName()).append('\t').append(si.item.getId())
+                  .append('\t').append(si.item.getName()).append('\t').append(si.item.getPrice());
+            }
+            return sb.toString();
         }
-        return tags;
     }
 
-    public List<Seller> getSellers() { return new ArrayList<>(sellers); }
-    public List<Seller> getSellersByCategory(FoodCategory cat) {
-        return sellers.stream().filter(s -> s.getCategory() == cat).collect(Collectors.toList());
-    }
-    public Seller getSellerById(String id) {
-        return sellers.stream().filter(s -> s.getId().equals(id)).findFirst().orElse(null);
+    private static String field(String[] f, int i) {
+        if (i >= f.length) throw new IllegalArgumentException(f[0] + " needs " + i + " field(s)");
+        return f[i];
     }
-    public List<SpecialOffer> getAllOffers() {
-        return sellers.stream().flatMap(s -> s.getPromotions().stream()).collect(Collectors.toList());
+
+    private static int number(String s) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + s);
+        }
     }
 }
 
-// ===============================
-// ORDER HISTORY MANAGER
-// ===============================
+/** Blocking client for {@link ChatGateway}, for scripts, load tests, and remote UIs. */
+class GatewayClient implements java.io.Closeable {
+    private final java.nio.channels.SocketChannel channel;
+    private final java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(4);
 
-class OrderHistoryManager {
-    private static final List<Order> completedOrders = new ArrayList<>();
-    private static final List<OrderHistoryListener> listeners = new ArrayList<>();
+    public GatewayClient(int port) throws java.io.IOException {
+        channel = java.nio.channels.SocketChannel.open(
+            new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), port));
+        channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+    }
 
-    public static void addCompletedOrder(Order order) {
-        completedOrders.add(order);
-        notifyListeners();
+    public void send(String... fields) throws java.io.IOException {
+        java.nio.ByteBuffer frame = ChatGateway.encode(fields);
+        while (frame.hasRemaining()) channel.write(frame);
     }
 
-    public static List<Order> getCompletedOrders() {
-        return new ArrayList<>(completedOrders);
+    /** Next frame's fields; blocks until one arrives. Throws EOFException once the server hangs up. */
+    public String[] receive() throws java.io.IOException {
+        header.clear();
+        readFully(header);
+        int length = header.flip().getInt();
+        if (length <= 0 || length > ChatGateway.MAX_FRAME) throw new java.io.IOException("Bad frame length " + length);
+        java.nio.ByteBuffer payload = java.nio.ByteBuffer.allocate(length);
+        readFully(payload);
+        return ChatGateway.decode(payload.flip());
     }
 
-    public static void addListener(OrderHistoryListener listener) {
-        listeners.add(listener);
+    /** Skips pushed MSG frames until a reply to a request arrives. */
+    public String[] reply() throws java.io.IOException {
+        String[] f;
+        do { f = receive(); } while (f[0].equals("MSG"));
+        return f;
     }
 
-    private static void notifyListeners() {
-        for (OrderHistoryListener l : listeners) {
-            l.onOrderHistoryChanged();
+    private void readFully(java.nio.ByteBuffer b) throws java.io.IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b) < 0) throw new java.io.EOFException("Gateway closed the connection");
         }
     }
-}
 
-interface OrderHistoryListener {
-    void onOrderHistoryChanged();
+    @Override
+    public void close() throws java.io.IOException { channel.close(); }
 }
 
 // ===============================
@@ -805,24 +5206,36 @@ class MapCanvas extends JPanel {
 // SELLER WINDOW
 // ===============================
 
-class SellerWindow extends JFrame implements OrderStatusListener, ChatListener {
+class SellerWindow extends JFrame implements OrderStatusListener, ChatListener, SellerDeskListener {
     private final Seller seller;
+    private final FoodChatEngine engine;
     private final ChatBridge chatBridge;
+    private final SellerDesk desk;
     private final JPanel ordersContainer;
-    private final List<Order> activeOrders = new ArrayList<>();
+    private final Set<String> shownOrders = new HashSet<>();  // EDT only
     private final JLabel statusLabel;
     private JPanel chatContainer;
     private JScrollPane chatScroll;
 
-    public SellerWindow(Seller seller, ChatBridge chatBridge) {
+    public SellerWindow(Seller seller, FoodChatEngine engine) {
         this.seller = seller;
-        this.chatBridge = chatBridge;
+        this.engine = engine;
+        this.chatBridge = engine.chat();
+        this.desk = engine.desk(seller);
         seller.setWindow(this);
-        chatBridge.addListener(this);  // Listen to all chat messages
+        // Only this seller's conversation with the buyer
+        chatBridge.subscribe(ChatTopic.seller(seller.getName()), this);
 
         setTitle(seller.getCategoryDisplay() + " — " + seller.getName());
         setSize(750, 700);
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                chatBridge.unsubscribe(ChatTopic.seller(seller.getName()), SellerWindow.this);
+                desk.removeListener(SellerWindow.this);
+            }
+        });
         setLayout(new BorderLayout());
         setBackground(new Color(250, 250, 252));
 
@@ -861,15 +5274,13 @@ class SellerWindow extends JFrame implements OrderStatusListener, ChatListener {
         busyBtn.setBorder(BorderFactory.createEmptyBorder(6, 14, 6, 14));
         busyBtn.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
         busyBtn.addActionListener(e -> {
-            seller.setBusy(!seller.isBusy());
+            engine.setSellerBusy(seller, !seller.isBusy());
             if (seller.isBusy()) {
                 statusLabel.setText("🔴 Busy");
                 statusLabel.setForeground(new Color(255, 100, 100));
-                chatBridge.sendSystem("⚠️ " + seller.getName() + " is currently busy. Orders may take longer.");
             } else {
                 statusLabel.setText("🟢 Open");
                 statusLabel.setForeground(new Color(100, 220, 100));
-                chatBridge.sendSystem("✅ " + seller.getName() + " is back and ready for orders!");
             }
         });
 
@@ -997,6 +5408,10 @@ class SellerWindow extends JFrame implements OrderStatusListener, ChatListener {
 
         setLocationRelativeTo(null);
         // Note: setVisible is called by the launcher after positioning
+
+        // Orders that reached the desk before this window opened, then new ones
+        desk.addListener(this);
+        for (Order order : desk.getActiveOrders()) onOrderReceived(order);
     }
 
     private JPanel makeEmptyOrdersLabel() {
@@ -1010,12 +5425,12 @@ class SellerWindow extends JFrame implements OrderStatusListener, ChatListener {
         return p;
     }
 
-    public void receiveOrder(Order order) {
-        activeOrders.add(order);
-        seller.setCurrentQueueCount(activeOrders.size());
+    @Override
+    public void onOrderReceived(Order order) {
         order.addStatusListener(this);
 
         SwingUtilities.invokeLater(() -> {
+            if (!shownOrders.add(order.getOrderId())) return;
             // Remove empty label if first
             if (ordersContainer.getComponentCount() == 2 &&
                 ordersContainer.getComponent(1) instanceof JPanel) {
@@ -1025,10 +5440,6 @@ class SellerWindow extends JFrame implements OrderStatusListener, ChatListener {
             ordersContainer.revalidate();
             ordersContainer.repaint();
         });
-
-        chatBridge.sendFromSeller(seller.getName(),
-            "✅ Order received! " + seller.getName() + " is preparing your food. Est. " +
-            order.getEstimatedMinutes() + " minutes.");
     }
 
     private JPanel createOrderCard(Order order) {
@@ -1123,10 +5534,9 @@ class SellerWindow extends JFrame implements OrderStatusListener, ChatListener {
             btn.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
             btn.addActionListener(e -> {
                 if (target != null) {
-                    order.updateStatus(target);
+                    if (!engine.updateOrderStatus(order, target)) Toolkit.getDefaultToolkit().beep();
                     statusLbl.setText(order.getStatus().displayName);
                     statusLbl.setForeground(order.getStatus().color);
-                    chatBridge.sendOrderUpdate(order);
                 } else {
                     // Map button clicked
                     new SimpleMapWindow(order);
@@ -1283,6 +5693,7 @@ class SellerWindow extends JFrame implements OrderStatusListener, ChatListener {
 // ===============================
 
 class BuyerChatWindow extends JFrame implements ChatListener {
+    private final FoodChatEngine engine;
     private final ChatBridge chatBridge;
     private final MultiStoreSystem storeSystem;
     private final ShoppingCart cart;
@@ -1293,11 +5704,25 @@ class BuyerChatWindow extends JFrame implements ChatListener {
     private JScrollPane chatScroll;
     private JPanel sellerStatusBar;
 
-    public BuyerChatWindow(ChatBridge chatBridge, MultiStoreSystem storeSystem) {
-        this.chatBridge = chatBridge;
-        this.storeSystem = storeSystem;
+    // Search-as-you-type: lookups run on a background thread, and only the
+    // answer for the latest keystroke is shown
+    private final ExecutorService suggestExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "foodchat-suggest");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong suggestGeneration = new AtomicLong();
+    private Future<?> pendingSuggest;
+    private final JPopupMenu suggestPopup = new JPopupMenu();
+    private boolean suppressSuggestions;
+
+    public BuyerChatWindow(FoodChatEngine engine) {
+        this.engine = engine;
+        this.chatBridge = engine.chat();
+        this.storeSystem = engine.store();
         this.cart = new ShoppingCart();
-        chatBridge.addListener(this);
+        chatBridge.subscribe(ChatTopic.BUYER, this);
+        chatBridge.subscribe(ChatTopic.SYSTEM, this);
 
         setTitle("🍔 FoodChat — Multi-Seller Food Ordering");
         setSize(1200, 850);
@@ -1496,6 +5921,7 @@ class BuyerChatWindow extends JFrame implements ChatListener {
             BorderFactory.createLineBorder(new Color(200, 200, 220)),
             BorderFactory.createEmptyBorder(8, 10, 8, 10)));
         inputField.addActionListener(e -> sendMessage());
+        installAutocomplete();
 
         JButton sendBtn = new JButton("📤 Send");
         sendBtn.setBackground(new Color(33, 150, 243));
@@ -1518,6 +5944,60 @@ class BuyerChatWindow extends JFrame implements ChatListener {
         return bar;
     }
 
+    private void installAutocomplete() {
+        suggestPopup.setFocusable(false);
+        // The caret may not have moved yet when these fire, so take it from the edit
+        inputField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { requestSuggestions(e.getOffset() + e.getLength()); }
+            public void removeUpdate(DocumentEvent e) { requestSuggestions(e.getOffset()); }
+            public void changedUpdate(DocumentEvent e) {}
+        });
+        inputField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_ESCAPE) suggestPopup.setVisible(false);
+            }
+        });
+    }
+
+    private void requestSuggestions(int caret) {
+        long generation = suggestGeneration.incrementAndGet();
+        if (pendingSuggest != null) pendingSuggest.cancel(false);
+        String typed = inputField.getText();
+        if (suppressSuggestions || typed.isBlank()) {
+            suggestPopup.setVisible(false);
+            return;
+        }
+        pendingSuggest = suggestExecutor.submit(() -> {
+            AutocompleteIndex.Completion completion = storeSystem.suggestAt(typed, caret, 6);
+            SwingUtilities.invokeLater(() -> {
+                // A newer keystroke already asked again; this answer is stale
+                if (generation == suggestGeneration.get()) showSuggestions(typed, completion);
+            });
+        });
+    }
+
+    private void showSuggestions(String typed, AutocompleteIndex.Completion completion) {
+        suggestPopup.setVisible(false);
+        suggestPopup.removeAll();
+        if (completion.labels.isEmpty() || !inputField.isShowing()) return;
+        for (String text : completion.labels) {
+            JMenuItem item = new JMenuItem(text);
+            item.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+            item.addActionListener(e -> {
+                if (!inputField.getText().equals(typed)) return;  // edited since; the span no longer fits
+                String rest = typed.substring(completion.to);
+                suppressSuggestions = true;
+                inputField.setText(typed.substring(0, completion.from) + text + (rest.startsWith(" ") ? "" : " ") + rest);
+                suppressSuggestions = false;
+                inputField.setCaretPosition(completion.from + text.length() + 1);  // past the space, ready for more
+            });
+            suggestPopup.add(item);
+        }
+        suggestPopup.show(inputField, 0, inputField.getHeight());
+        inputField.requestFocusInWindow();
+    }
+
     private void showWelcome() {
         JPanel wp = new JPanel();
         wp.setLayout(new BoxLayout(wp, BoxLayout.Y_AXIS));
@@ -1559,160 +6039,47 @@ class BuyerChatWindow extends JFrame implements ChatListener {
     private void sendMessage() {
         String msg = inputField.getText().trim();
         if (msg.isEmpty()) return;
-        chatBridge.sendFromBuyer(msg);
+        suggestPopup.setVisible(false);
         inputField.setText("");
-        processQuery(msg);
+        engine.sendBuyerMessage(msg);
     }
 
-    private void processQuery(String query) {
-        String lower = query.toLowerCase();
-
-        // ===== AUTO-RESPONSES FOR COMMON QUESTIONS =====
-        
-        // Greetings
-        if (lower.matches("(hi|hello|hey|halo|hai|pagi|siang|malam|selamat.*)[!.?]*")) {
-            Timer t = new Timer(600, e -> 
-                chatBridge.sendFromSeller("FoodChat AI", 
-                    "Hello! 👋 Welcome to FoodChat! What can I help you find today? Try: 'nasi goreng', 'korean food', 'special offer', or 'cheap food'"));
-            t.setRepeats(false); t.start();
-            return;
-        }
-
-        // Help / menu requests
-        if (lower.contains("help") || lower.contains("bantuan") || lower.contains("apa aja") || 
-            lower.contains("what can") || lower.contains("list menu") || lower.contains("show menu")) {
-            Timer t = new Timer(600, e -> 
-                chatBridge.sendFromSeller("FoodChat AI", 
-                    "I can help you find:\n• 🍛 Padang food\n• 🍜 Korean dishes\n• 🍗 Fast food\n• 🥗 Healthy options\n• 🍚 Warteg/local food\n• 🍰 Desserts\n• 🥤 Drinks\n\nJust tell me what you're craving! Or ask for 'special offer' for deals!"));
-            t.setRepeats(false); t.start();
-            return;
-        }
-
-        // Thank you
-        if (lower.matches(".*(thank|terima|makasih).*")) {
-            Timer t = new Timer(500, e -> 
-                chatBridge.sendFromSeller("FoodChat AI", "You're welcome! 😊 Anything else?"));
-            t.setRepeats(false); t.start();
-            return;
-        }
-
-        // Special offers / promos
-        if (lower.contains("special") || lower.contains("offer") || lower.contains("promo")
-            || lower.contains("diskon") || lower.contains("discount") || lower.contains("deal")) {
-            Timer t = new Timer(800, e -> {
-                chatBridge.sendFromSeller("FoodChat AI", "🎁 Here are today's special offers:");
-                Timer t2 = new Timer(400, e2 -> {
-                    List<SpecialOffer> offers = storeSystem.getAllOffers();
-                    for (SpecialOffer offer : offers) chatBridge.sendSpecialOffer(offer);
-                });
-                t2.setRepeats(false); t2.start();
-            });
-            t.setRepeats(false); t.start();
-            return;
-        }
-
-        // Seller status / availability check
-        if (lower.contains("open") || lower.contains("available") || lower.contains("buka") || 
-            lower.contains("tutup") || lower.contains("busy")) {
-            Timer t = new Timer(600, e -> {
-                StringBuilder sb = new StringBuilder("📊 Seller Status:\n");
-                for (Seller s : storeSystem.getSellers()) {
-                    String status = s.isBusy() ? "🔴 Busy (~" + s.getEstimatedWaitTime() + " min wait)" 
-                                               : "🟢 Open (~" + s.getEstimatedWaitTime() + " min)";
-                    sb.append("• ").append(s.getName()).append(": ").append(status).append("\n");
-                }
-                chatBridge.sendFromSeller("FoodChat AI", sb.toString());
-            });
-            t.setRepeats(false); t.start();
-            return;
-        }
-
-        // Recommendation request (no specific food mentioned)
-        if (lower.matches(".*(recommend|suggest|rekomendasi|saranin|what should|apa yang).*") 
-            && !lower.contains("food") && query.length() < 50) {
-            Timer t = new Timer(700, e -> {
-                chatBridge.sendFromSeller("FoodChat AI", 
-                    "🤔 What are you in the mood for?\n• Spicy (pedas)\n• Sweet (manis)\n• Healthy (sehat)\n• Fast/Quick (cepat)\n• Cheap (murah)\n\nOr tell me a category: Korean, Padang, Warteg, etc.");
-            });
-            t.setRepeats(false); t.start();
-            return;
-        }
-
-        // Popular items shortcut
-        if (lower.matches(".*(popular|favorit|favorite|best seller|terlaris).*")) {
-            Timer t = new Timer(700, e -> {
-                List<SellerItem> results = storeSystem.search("", null, true, null);
-                chatBridge.sendRecommendations(results.stream().limit(5).collect(Collectors.toList()), 
-                    "⭐ Top-rated items across all sellers:");
-            });
-            t.setRepeats(false); t.start();
-            return;
-        }
-
-        // ===== SEARCH WITH FILTERS =====
-
-        // Parse price constraint
-        Integer tempMaxPrice = null;
-        java.util.regex.Matcher pm = java.util.regex.Pattern.compile(
-            "under\\s*(\\d+)k?|<\\s*(\\d+)k?|max\\s*(\\d+)k?|dibawah\\s*(\\d+)k?|budget\\s*(\\d+)k?")
-            .matcher(lower);
-        if (pm.find()) {
-            for (int g = 1; g <= 5; g++) {
-                if (pm.group(g) != null) {
-                    int val = Integer.parseInt(pm.group(g));
-                    tempMaxPrice = lower.contains("k") || val < 500 ? val * 1000 : val;
-                    break;
-                }
-            }
-        }
-        final Integer maxPrice = tempMaxPrice;  // Make it final for lambda usage
-
-        boolean byRating = lower.contains("rating") || lower.contains("best") || lower.contains("top") 
-                        || lower.contains("terbaik");
-        boolean bySpeed = lower.contains("fastest") || lower.contains("cepat") || lower.contains("quick") 
-                       || lower.contains("tercepat");
-
-        List<SellerItem> results = storeSystem.search(query, maxPrice, byRating ? true : null, bySpeed ? true : null);
-
-        if (!results.isEmpty()) {
-            Timer t = new Timer(800, e -> {
-                String msg = "Here are" + (maxPrice != null ? " options under Rp " + String.format("%,d", maxPrice) : " some recommendations") + ":";
-                chatBridge.sendRecommendations(results, msg);
-            });
-            t.setRepeats(false); t.start();
-        } else {
-            // No results - give helpful suggestions
-            Timer t = new Timer(700, e -> {
-                String suggestion;
-                if (maxPrice != null && maxPrice < 10000) {
-                    suggestion = "Hmm, not much under Rp " + String.format("%,d", maxPrice) + 
-                        ". Try 'cheap food' or increase your budget to 15k-20k!";
-                } else {
-                    suggestion = "I couldn't find that. Try:\n• Specific foods: 'nasi goreng', 'burger', 'salad'\n" +
-                        "• Categories: 'korean', 'padang', 'healthy'\n• Taste: 'spicy', 'sweet', 'savory'\n" +
-                        "• Or just ask: 'what's popular?'";
-                }
-                chatBridge.sendFromSeller("FoodChat AI", suggestion);
-            });
-            t.setRepeats(false); t.start();
-        }
+    @Override
+    public void onMessageReceived(ChatMessage message) {
+        onMessagesReceived(List.of(message));
     }
 
+    // One EDT task and one scroll/layout pass for the whole batch
     @Override
-    public void onMessageReceived(ChatMessage message) {
+    public void onMessagesReceived(List<ChatMessage> batch) {
+        List<ChatMessage> messages = List.copyOf(batch);
         SwingUtilities.invokeLater(() -> {
-            renderMessage(message);
-            scrollToBottom();
-            // Refresh seller status pills if busy status may have changed
-            if (message.type == MessageType.SYSTEM || message.type == MessageType.ORDER_UPDATE) {
-                refreshSellerStatusBar();
+            boolean statusMayChange = false;
+            for (ChatMessage message : messages) {
+                renderMessage(message);
+                // Refresh seller status pills if busy status may have changed
+                statusMayChange |= message.type == MessageType.SYSTEM || message.type == MessageType.ORDER_UPDATE;
             }
+            scrollToBottom();
+            if (statusMayChange) refreshSellerStatusBar();
         });
     }
 
+    private static boolean hasAttachment(ChatMessage msg) {
+        switch (msg.type) {
+            case STORE_RECOMMENDATION: return msg.sellerItems != null;
+            case SPECIAL_OFFER: return msg.specialOffer != null;
+            case ORDER_UPDATE: return msg.order != null;
+            default: return true;
+        }
+    }
+
     private void renderMessage(ChatMessage msg) {
         if (msg.type == MessageType.TEXT) {
             addTextBubble(msg);
+        } else if (!hasAttachment(msg)) {
+            // Replayed from the journal, but the order or offer it pointed at is gone
+            addSystemNote(msg);
         } else if (msg.type == MessageType.STORE_RECOMMENDATION) {
             addRecommendationCard(msg);
         } else if (msg.type == MessageType.SPECIAL_OFFER) {
@@ -1990,6 +6357,7 @@ class BuyerChatWindow extends JFrame implements ChatListener {
     }
 
     private void openSellerWindow(Seller seller) {
+        chatBridge.openConversation(seller.getName());
         SellerWindow win = seller.getWindow();
         if (win != null && win.isVisible()) {
             win.setState(JFrame.NORMAL);
@@ -1997,7 +6365,7 @@ class BuyerChatWindow extends JFrame implements ChatListener {
             win.requestFocus();
             return;
         }
-        SellerWindow sw = new SellerWindow(seller, chatBridge);
+        SellerWindow sw = new SellerWindow(seller, engine);
         sw.setSize(670, 420);
         sw.setVisible(true);
     }
@@ -2352,24 +6720,12 @@ class BuyerChatWindow extends JFrame implements ChatListener {
                 return;
             }
 
-            // Create order and send to seller
-            Order order = new Order(name, phone, addr, notesA.getText().trim(),
-                cart.getItems(), cart.getTotal(), seller);
-
-            // Open seller window if not open
+            // Open seller window if not open, then hand the order to the seller's desk
             openSellerWindow(seller);
-
-            Timer t = new Timer(500, ev -> {
-                if (seller.getWindow() != null) seller.getWindow().receiveOrder(order);
-            });
-            t.setRepeats(false); t.start();
+            engine.placeOrder(name, phone, addr, notesA.getText().trim(), cart, seller);
 
             dlg.dispose();
-            cart.clear();
             refreshCart();
-
-            chatBridge.sendSystem("🚀 Order " + order.getOrderId() + " placed with " + seller.getName() +
-                "! Est. " + order.getEstimatedMinutes() + " minutes.");
         });
 
         btnRow.add(cancel); btnRow.add(place);
@@ -2388,7 +6744,12 @@ class BuyerChatWindow extends JFrame implements ChatListener {
 // ===============================
 
 class OrderHistoryWindow extends JFrame implements OrderHistoryListener {
+    static final int PAGE_SIZE = 20;
+
     private JPanel historyContainer;
+    private JLabel subtitle;
+    private JButton moreBtn;
+    private int cursor = OrderHistoryStore.NEWEST;
 
     public OrderHistoryWindow() {
         setTitle("📜 Order History");
@@ -2405,7 +6766,7 @@ class OrderHistoryWindow extends JFrame implements OrderHistoryListener {
         title.setFont(new Font("Segoe UI", Font.BOLD, 20));
         title.setForeground(Color.WHITE);
 
-        JLabel subtitle = new JLabel(OrderHistoryManager.getCompletedOrders().size() + " completed orders");
+        subtitle = new JLabel();
         subtitle.setFont(new Font("Segoe UI", Font.PLAIN, 12));
         subtitle.setForeground(new Color(180, 180, 200));
 
@@ -2426,21 +6787,37 @@ class OrderHistoryWindow extends JFrame implements OrderHistoryListener {
         scroll.setBorder(null);
         scroll.getVerticalScrollBar().setUnitIncrement(16);
 
+        moreBtn = new JButton("⬇️ Older orders");
+        moreBtn.setFont(new Font("Segoe UI", Font.BOLD, 12));
+        moreBtn.setFocusPainted(false);
+        moreBtn.setAlignmentX(Component.LEFT_ALIGNMENT);
+        moreBtn.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+        moreBtn.addActionListener(e -> loadPage());
+
         add(header, BorderLayout.NORTH);
         add(scroll, BorderLayout.CENTER);
 
         refreshHistory();
         OrderHistoryManager.addListener(this);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                OrderHistoryManager.removeListener(OrderHistoryWindow.this);
+            }
+        });
 
         setLocationRelativeTo(null);
         setVisible(true);
     }
 
+    // Back to the newest page; older pages load on demand
     private void refreshHistory() {
         historyContainer.removeAll();
+        cursor = OrderHistoryStore.NEWEST;
 
-        List<Order> orders = OrderHistoryManager.getCompletedOrders();
-        if (orders.isEmpty()) {
+        int total = OrderHistoryManager.store().size();
+        subtitle.setText(total + " completed orders");
+        if (total == 0) {
             JPanel empty = new JPanel();
             empty.setOpaque(false);
             JLabel lbl = new JLabel("<html><center>📭<br><br>No completed orders yet</center></html>");
@@ -2448,16 +6825,23 @@ class OrderHistoryWindow extends JFrame implements OrderHistoryListener {
             lbl.setForeground(Color.GRAY);
             empty.add(lbl);
             historyContainer.add(empty);
+            historyContainer.revalidate();
+            historyContainer.repaint();
         } else {
-            // Show newest first
-            List<Order> reversed = new ArrayList<>(orders);
-            java.util.Collections.reverse(reversed);
-            
-            for (Order order : reversed) {
-                historyContainer.add(createHistoryCard(order));
-                historyContainer.add(Box.createRigidArea(new Dimension(0, 10)));
-            }
+            loadPage();
+        }
+    }
+
+    // Appends the next PAGE_SIZE orders, newest first, below those already shown
+    private void loadPage() {
+        historyContainer.remove(moreBtn);
+        OrderHistoryStore.Page page = OrderHistoryManager.store().page(cursor, PAGE_SIZE);
+        for (Order order : page.orders) {
+            historyContainer.add(createHistoryCard(order));
+            historyContainer.add(Box.createRigidArea(new Dimension(0, 10)));
         }
+        cursor = page.next;
+        if (page.hasMore()) historyContainer.add(moreBtn);
 
         historyContainer.revalidate();
         historyContainer.repaint();